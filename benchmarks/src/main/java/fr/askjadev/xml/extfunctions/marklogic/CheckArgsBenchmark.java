@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.value.StringValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+
+/**
+ * Reading the connection arguments, for each signature.
+ */
+@State(Scope.Benchmark)
+public class CheckArgsBenchmark {
+
+    private final MarkLogicQuery function = new MarkLogicQuery();
+    private Sequence[] elementArgs;
+    private Sequence[] stringArgs;
+
+    @Setup
+    public void setUp() throws Exception {
+        NodeInfo doc = new Processor(false).newDocumentBuilder().build(new StreamSource(new StringReader(
+                "<marklogic><server>localhost</server><port>8000</port><user>admin</user><password>admin</password>"
+                + "<database>Documents</database><prefetch>10</prefetch>"
+                + "<variables><variable name='id' type='xs:integer'>42</variable></variables></marklogic>")))
+                .getUnderlyingNode();
+        StringValue query = new StringValue("()");
+        elementArgs = new Sequence[]{query, doc.iterateAxis(AxisInfo.CHILD).next()};
+        stringArgs = new Sequence[]{query, new StringValue("localhost"), new StringValue("8000"),
+                new StringValue("admin"), new StringValue("admin"), new StringValue("Documents")};
+    }
+
+    @Benchmark
+    public MarkLogicConfig element() throws Exception {
+        return function.checkArgs(elementArgs);
+    }
+
+    @Benchmark
+    public MarkLogicConfig strings() throws Exception {
+        return function.checkArgs(stringArgs);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.DatabaseClientFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Getting a client: a new one for each call, as before pooling, against a
+ * lease from the pool.
+ */
+@State(Scope.Benchmark)
+public class ClientBenchmark {
+
+    private final ConnectionDescriptor descriptor = new ConnectionDescriptor("localhost", 8000, "admin", "admin", null, "basic");
+    private DatabaseClientPool pool;
+
+    @Setup
+    public void setUp() {
+        pool = new DatabaseClientPool(16, 60000L);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.clear();
+    }
+
+    @Benchmark
+    public DatabaseClient newClient() {
+        DatabaseClient client = DatabaseClientFactory.newClient(descriptor.getServer(), descriptor.getPort(),
+                new DatabaseClientFactory.BasicAuthContext(descriptor.getUser(), descriptor.getPassword()));
+        client.release();
+        return client;
+    }
+
+    @Benchmark
+    public DatabaseClient pooledLease() {
+        DatabaseClientPool.Lease lease = pool.acquire(descriptor);
+        lease.release();
+        return lease.getClient();
+    }
+}
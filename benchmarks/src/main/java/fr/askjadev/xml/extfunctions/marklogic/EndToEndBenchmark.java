@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XQueryEvaluator;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.util.Collections;
+
+/**
+ * <tt>mkl-ext:marklogic-query</tt> called from XQuery and XSLT, against the
+ * stub server.
+ */
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int items;
+
+    @Param({"100", "10000"})
+    public int size;
+
+    private StubMarkLogicServer server;
+    private XQueryEvaluator xquery;
+    private Xslt30Transformer xslt;
+    private XdmNode config;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new StubMarkLogicServer();
+        server.setResponse(StubMarkLogicServer.documents(items, size));
+        Processor processor = new Processor(false);
+        processor.registerExtensionFunction(new MarkLogicQuery());
+        config = processor.newDocumentBuilder().build(new StreamSource(new StringReader(server.getConfigElement())));
+        xquery = processor.newXQueryCompiler().compile(
+                "declare namespace mkl-ext = 'fr:askjadev:xml:extfunctions';\n"
+                + "declare variable $config external;\n"
+                + "count(mkl-ext:marklogic-query('()', $config/*))").load();
+        xquery.setExternalVariable(new QName("config"), config);
+        xslt = processor.newXsltCompiler().compile(new StreamSource(new StringReader(
+                "<xsl:stylesheet version='2.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'"
+                + " xmlns:mkl-ext='fr:askjadev:xml:extfunctions'>"
+                + "<xsl:param name='config'/>"
+                + "<xsl:template name='main'><out><xsl:copy-of select=\"mkl-ext:marklogic-query('()', $config/*)\"/></out></xsl:template>"
+                + "</xsl:stylesheet>"))).load30();
+        xslt.setStylesheetParameters(Collections.singletonMap(new QName("config"), (XdmValue) config));
+    }
+
+    @TearDown
+    public void tearDown() {
+        DatabaseClientPool.getInstance().clear();
+        server.close();
+    }
+
+    @Benchmark
+    public XdmValue xquery() throws Exception {
+        return xquery.evaluate();
+    }
+
+    @Benchmark
+    public XdmNode xslt() throws Exception {
+        XdmDestination destination = new XdmDestination();
+        xslt.callTemplate(new QName("main"), destination);
+        return destination.getXdmNode();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.eval.EvalResult;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.s9api.Processor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading results through {@link MarkLogicSequenceIterator#next()}, from the
+ * stub server, and converting a single in-memory result.
+ */
+@State(Scope.Benchmark)
+public class ResultParsingBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int items;
+
+    @Param({"100", "10000"})
+    public int size;
+
+    private StubMarkLogicServer server;
+    private DatabaseClientPool pool;
+    private ConnectionDescriptor descriptor;
+    private EvalResultConverter converter;
+    private EvalResult document;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new StubMarkLogicServer();
+        server.setResponse(StubMarkLogicServer.documents(items, size));
+        pool = new DatabaseClientPool(16, 60000L);
+        descriptor = new ConnectionDescriptor("localhost", server.getPort(), "admin", "admin", null, "basic");
+        Processor processor = new Processor(false);
+        Configuration configuration = processor.getUnderlyingConfiguration();
+        converter = new EvalResultConverter(processor.newDocumentBuilder(), configuration);
+        document = new EvalResultConverterTest.FakeResult(EvalResult.Type.XML, StubMarkLogicServer.document(size));
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.clear();
+        server.close();
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) throws Exception {
+        DatabaseClientPool.Lease lease = pool.acquire(descriptor);
+        DatabaseClient client = lease.getClient();
+        MarkLogicSequenceIterator it = new MarkLogicSequenceIterator(client.newServerEval().xquery("()").eval(), converter, lease);
+        for (Item item = it.next(); item != null; item = it.next()) {
+            blackhole.consume(item);
+        }
+    }
+
+    @Benchmark
+    public Item convert() throws Exception {
+        return converter.convert(document, new CallStatistics());
+    }
+}
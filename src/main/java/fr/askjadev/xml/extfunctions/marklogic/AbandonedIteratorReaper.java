@@ -0,0 +1,78 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a cleanup action when a result iterator becomes unreachable without
+ * having been closed, e.g. when Saxon only reads the head of a sequence.
+ * Without it, such an iterator would keep its pooled client leased forever.
+ *
+ * The cleanup action must not reference the iterator, or it would never
+ * become unreachable.
+ */
+final class AbandonedIteratorReaper {
+
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+    // Keeps the phantom references reachable until they are enqueued
+    private static final Set<Registration> REGISTRATIONS = Collections.newSetFromMap(new ConcurrentHashMap<Registration, Boolean>());
+
+    static {
+        Thread reaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reap();
+            }
+        }, "marklogic-ext-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private AbandonedIteratorReaper() {
+        super();
+    }
+
+    /**
+     * Registers the cleanup of an iterator. The registration must be cancelled
+     * when the iterator is closed normally.
+     */
+    static Registration register(Object iterator, Runnable cleanup) {
+        Registration registration = new Registration(iterator, cleanup);
+        REGISTRATIONS.add(registration);
+        return registration;
+    }
+
+    private static void reap() {
+        while (true) {
+            try {
+                Registration registration = (Registration) QUEUE.remove();
+                if (REGISTRATIONS.remove(registration)) {
+                    registration.cleanup.run();
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (RuntimeException ex) {
+                Logger.getLogger(AbandonedIteratorReaper.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    static final class Registration extends PhantomReference<Object> {
+        private final Runnable cleanup;
+
+        private Registration(Object referent, Runnable cleanup) {
+            super(referent, QUEUE);
+            this.cleanup = cleanup;
+        }
+
+        void cancel() {
+            REGISTRATIONS.remove(this);
+            clear();
+        }
+    }
+}
@@ -1,28 +1,42 @@
 package fr.askjadev.xml.extfunctions.marklogic;
 
-import com.marklogic.client.DatabaseClient;
-import com.marklogic.client.DatabaseClientFactory;
-import com.marklogic.client.FailedRequestException;
-import com.marklogic.client.ForbiddenUserException;
+import com.marklogic.client.MarkLogicServerException;
 import com.marklogic.client.eval.EvalResultIterator;
 import com.marklogic.client.eval.ServerEvaluationCall;
+import com.marklogic.client.io.DocumentMetadataHandle;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.SequenceReceiver;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.Literal;
+import net.sf.saxon.expr.StaticContext;
 import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.parser.ExplicitLocation;
+import net.sf.saxon.expr.parser.Location;
 import net.sf.saxon.lib.ExtensionFunctionCall;
 import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.ma.arrays.SimpleArrayItem;
 import net.sf.saxon.om.*;
-import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.tree.iter.AxisIterator;
 import net.sf.saxon.tree.tiny.TinyElementImpl;
 import net.sf.saxon.type.Type;
+import net.sf.saxon.value.EmptySequence;
+import net.sf.saxon.value.SequenceExtent;
 import net.sf.saxon.value.SequenceType;
 import net.sf.saxon.value.StringValue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
 public abstract class AbstractMLExtensionFunction extends ExtensionFunctionDefinition {
 
     enum ExtentionType {
-        XQUERY, MODULE;
+        XQUERY, MODULE, BATCH, WRITE, FLUSH;
     }
 
     @Override
@@ -53,66 +67,500 @@ public abstract class AbstractMLExtensionFunction extends ExtensionFunctionDefin
     }
 
     ExtensionFunctionCall constructExtensionFunctionCall(final ExtentionType type) {
-        return new ExtensionFunctionCall() {
-            @Override
-            public Sequence call(XPathContext xpc, Sequence[] sqncs) throws XPathException {
-                // Get and check args
-                String[] args = checkArgs(sqncs);
-                // Read args
-                String moduleOrQuery = args[0];
-                String server = args[1];
-                // TODO: catch exception if non num !
-                Integer port = Integer.parseInt(args[2]);
-                String user = args[3];
-                String password = args[4];
-                String database = args[5];
-                String authentication = args[6];
-                // Launch
-                Processor proc = new Processor(xpc.getConfiguration());
-                DatabaseClient session = null;
+        return new MarkLogicFunctionCall(type);
+    }
+
+    // Calls timed before requests are hedged
+    private static final int HEDGE_MIN_CALLS = 20;
+
+    private class MarkLogicFunctionCall extends ExtensionFunctionCall {
+
+        private final ExtentionType type;
+        // Connection resolved at compile time, when all the connection arguments are literals
+        private MarkLogicConfig staticConfig;
+        // Last <marklogic> element seen, and its config
+        private volatile ConfigElementMemo lastConfigElement;
+        // Shared by every evaluation of this call, whatever the thread
+        private volatile EvalResultConverter cachedConverter;
+        // Where the call is, for the slow query log
+        private String location = "unknown location";
+        // Of the last query, usually the same each time
+        private volatile QueryTracer.Fingerprint lastFingerprint;
+        // Time to the response of every request of this call, for hedging
+        private LatencyHistogram latencies = new LatencyHistogram();
+
+        private MarkLogicFunctionCall(ExtentionType type) {
+            super();
+            this.type = type;
+        }
+
+        @Override
+        public void supplyStaticContext(StaticContext context, int locationId, Expression[] arguments) throws XPathException {
+            Location containing = context.getContainingLocation();
+            if (containing != null && containing.getSystemId() != null) {
+                location = containing.getSystemId() + ":" + containing.getLineNumber();
+            }
+            if (arguments.length < 2 || type != ExtentionType.XQUERY && type != ExtentionType.MODULE) {
+                return;
+            }
+            Sequence[] values = new Sequence[arguments.length];
+            for (int i = 1; i < arguments.length; i++) {
+                if (!(arguments[i] instanceof Literal)) {
+                    return;
+                }
+                values[i] = ((Literal) arguments[i]).getValue();
+            }
+            try {
+                staticConfig = checkArgs(values);
+            } catch (XPathException ex) {
+                ex.setIsStaticError(true);
+                ex.maybeSetLocation(containing);
+                throw ex;
+            }
+        }
+
+        @Override
+        public void copyLocalData(ExtensionFunctionCall destination) {
+            ((MarkLogicFunctionCall) destination).staticConfig = staticConfig;
+            ((MarkLogicFunctionCall) destination).location = location;
+            ((MarkLogicFunctionCall) destination).latencies = latencies;
+        }
+
+        @Override
+        public Sequence call(XPathContext xpc, Sequence[] sqncs) throws XPathException {
+            if (type == ExtentionType.BATCH) {
+                return callBatch(xpc, sqncs);
+            }
+            if (type == ExtentionType.WRITE) {
+                return callWrite(sqncs);
+            }
+            if (type == ExtentionType.FLUSH) {
+                // Nothing to flush if nothing was written with these options
+                BulkWriter writer = BulkWriter.find(getConfig(new Sequence[]{EmptySequence.getInstance(), sqncs[0]}));
+                if (writer != null) {
+                    writer.flush();
+                }
+                return EmptySequence.getInstance();
+            }
+            // Get and check args
+            String moduleOrQuery = getQuery(sqncs);
+            MarkLogicConfig config = getConfig(sqncs);
+            // Scatter and paging send their own wrappers: only plain calls can be compacted
+            boolean compact = config.isCompact() && config.getScatter() == MarkLogicConfig.Scatter.NONE && config.getPageSize() == 0;
+            EvalResultConverter converter = getConverter(xpc.getConfiguration()).withJson(config.getJson(), compact);
+            ExtentionType sentType = type;
+            String sent = moduleOrQuery;
+            List<ExternalVariable> variables = config.getVariables();
+            if (compact) {
+                sentType = ExtentionType.XQUERY;
+                sent = JsonResults.COMPACT_WRAPPER;
+                variables = Collections.singletonList(QueryBatch.queryVariable(type, moduleOrQuery, config.getVariables()));
+            }
+            ModuleRegistry.Module module = type == ExtentionType.MODULE
+                    ? ModuleRegistry.getInstance().check(config, moduleOrQuery) : null;
+            ResultCache.Key key = null;
+            if (config.getCache() != MarkLogicConfig.CacheMode.BYPASS) {
+                key = new ResultCache.Key(sentType, sent, variables, config.getHosts(), xpc.getConfiguration(), config.getJson());
+                if (config.getCache() == MarkLogicConfig.CacheMode.USE) {
+                    GroundedValue cached = ResultCache.getInstance().get(key);
+                    MarkLogicMetrics.getInstance().recordCacheLookup(cached != null);
+                    if (cached != null) {
+                        // Nothing is sent: there is no call to trace
+                        return config.isPassthrough() ? passthrough(cached.iterate(), xpc) : cached;
+                    }
+                }
+            }
+            QueryTracer.Trace trace = QueryTracer.getInstance().isEnabled() || module != null
+                    ? QueryTracer.getInstance().start(getFingerprint(moduleOrQuery), location, module) : null;
+            if (key != null) {
+                MarkLogicSequenceIterator it;
+                GroundedValue value;
+                try {
+                    it = execute(sentType, sent, variables, moduleOrQuery, config, converter);
+                    value = SequenceExtent.makeSequenceExtent(it);
+                } finally {
+                    if (trace != null) {
+                        trace.end();
+                    }
+                }
+                ResultCache.getInstance().put(key, value, it.getStatistics().bytesConsumed, config.getCacheTtl());
+                return config.isPassthrough() ? passthrough(value.iterate(), xpc) : value;
+            }
+            SequenceIterator it;
+            try {
+                if (config.getScatter() != MarkLogicConfig.Scatter.NONE) {
+                    it = scatter(moduleOrQuery, config, converter);
+                } else if (config.getPageSize() > 0) {
+                    it = page(moduleOrQuery, config, converter);
+                } else if (config.isAsync()) {
+                    it = new AsyncSequenceIterator(new Request(sentType, sent, variables, moduleOrQuery, config, converter),
+                            ExtensionExecutors.requests());
+                } else {
+                    it = execute(sentType, sent, variables, moduleOrQuery, config, converter);
+                }
+            } catch (XPathException | RuntimeException ex) {
+                // Failed calls are often the slowest ones: timed out, or out of retries
+                if (trace != null) {
+                    trace.end();
+                }
+                throw ex;
+            }
+            if (config.isPassthrough()) {
+                try {
+                    return passthrough(it, xpc);
+                } finally {
+                    if (trace != null) {
+                        trace.end();
+                    }
+                }
+            }
+            if (trace != null) {
+                it = new TracedSequenceIterator(it, trace);
+            }
+            if (config.getPrefetch() > 0) {
+                it = new PrefetchSequenceIterator(it, config.getPrefetch(), ExtensionExecutors.background());
+            }
+            if (config.isReplay()) {
+                return new ReplayableSequence(it);
+            }
+            return new LazySequence(it);
+        }
+
+        /**
+         * Writes the results to the current output rather than returning
+         * them; only a plain call parses XML results straight into it.
+         * Whatever uses the value of the call, e.g. a function it is the
+         * argument of, gets the empty sequence: this cannot be told from a
+         * call whose value is written, so only the lack of an output, as in
+         * a variable, is an error.
+         */
+        private Sequence passthrough(SequenceIterator it, XPathContext xpc) throws XPathException {
+            SequenceReceiver out = xpc.getReceiver();
+            if (out == null) {
+                it.close();
+                throw new XPathException("'passthrough' needs the call to write to an output, e.g. from xsl:sequence, not to a variable.");
+            }
+            if (it instanceof MarkLogicSequenceIterator) {
+                ((MarkLogicSequenceIterator) it).send(out);
+            } else {
                 try {
-                    session = createMarkLogicClient(authentication, user, password, database, server, port);
-                    // Eval query and get result
-                    DocumentBuilder builder = proc.newDocumentBuilder();
-                    ServerEvaluationCall call = session.newServerEval();
-                    if (type == ExtentionType.MODULE) {
-                        call.modulePath(moduleOrQuery);
-                    } else {
-                        call.xquery(moduleOrQuery);
-                    }
-                    EvalResultIterator result = call.eval();
-                    MarkLogicSequenceIterator it = new MarkLogicSequenceIterator(result, builder, session);
-                    return new LazySequence(it);
-                } catch (FailedRequestException | ForbiddenUserException ex) {
-                    throw new XPathException(ex);
-                }
-            }
-        };
+                    for (Item item = it.next(); item != null; item = it.next()) {
+                        out.append(item, ExplicitLocation.UNKNOWN_LOCATION, NodeInfo.ALL_NAMESPACES);
+                    }
+                } finally {
+                    it.close();
+                }
+            }
+            return EmptySequence.getInstance();
+        }
+
+        /**
+         * Runs the query once per forest, all partitions at once.
+         */
+        private SequenceIterator scatter(String moduleOrQuery, MarkLogicConfig config, EvalResultConverter converter) throws XPathException {
+            List<String> forests = ScatterGather.readForests(execute(ExtentionType.XQUERY, ScatterGather.FORESTS,
+                    Collections.<ExternalVariable>emptyList(), ScatterGather.FORESTS, config, converter));
+            ExternalVariable query = QueryBatch.queryVariable(type, moduleOrQuery, config.getVariables());
+            List<Request> requests = new ArrayList<>(forests.size());
+            for (String forest : forests) {
+                // Under affinity routing, each forest keeps to one host
+                requests.add(new Request(ExtentionType.XQUERY, ScatterGather.WRAPPER,
+                        Arrays.asList(query, ScatterGather.forestVariable(forest)), forest, config, converter));
+            }
+            return new GatherSequenceIterator(requests, config.getScatter() == MarkLogicConfig.Scatter.ORDERED, ExtensionExecutors.requests());
+        }
+
+        /**
+         * Runs the query once per page, as the results are read.
+         */
+        private SequenceIterator page(final String moduleOrQuery, final MarkLogicConfig config, final EvalResultConverter converter) {
+            final ExternalVariable query = QueryBatch.queryVariable(type, moduleOrQuery, config.getVariables());
+            return new PagedSequenceIterator(new PagedSequenceIterator.Pages() {
+                @Override
+                public Callable<? extends SequenceIterator> page(long start, int length) {
+                    return new Request(ExtentionType.XQUERY, PagedSequenceIterator.WRAPPER, Arrays.asList(query,
+                            new ExternalVariable("start", "xs:integer", Long.toString(start)),
+                            new ExternalVariable("length", "xs:integer", Integer.toString(length))),
+                            moduleOrQuery, config, converter);
+                }
+            }, config.getPageSize(), ExtensionExecutors.requests());
+        }
+
+        private Sequence callBatch(XPathContext xpc, Sequence[] sqncs) throws XPathException {
+            MarkLogicConfig config = getConfig(Arrays.copyOf(sqncs, 2));
+            QueryBatch batch = QueryBatch.read(sqncs[0], sqncs.length > 2 ? sqncs[2] : null, config.getVariables());
+            if (batch.size() == 0) {
+                return SimpleArrayItem.EMPTY_ARRAY;
+            }
+            QueryTracer.Trace trace = QueryTracer.getInstance().start(batch.getFingerprint(), location);
+            try {
+                MarkLogicSequenceIterator it = execute(ExtentionType.XQUERY, QueryBatch.WRAPPER,
+                        Collections.singletonList(batch.toVariable()), QueryBatch.WRAPPER, config,
+                        getConverter(xpc.getConfiguration()).withJson(config.getJson(), false));
+                return batch.group(it);
+            } finally {
+                if (trace != null) {
+                    trace.end();
+                }
+            }
+        }
+
+        /**
+         * Queues the documents into the writer of the config, the config being
+         * the third argument.
+         */
+        private Sequence callWrite(Sequence[] sqncs) throws XPathException {
+            MarkLogicConfig config = getConfig(new Sequence[]{sqncs[0], sqncs[2]});
+            List<String> uris = new ArrayList<>();
+            SequenceIterator it = sqncs[0].iterate();
+            for (Item item = it.next(); item != null; item = it.next()) {
+                uris.add(item.getStringValue());
+            }
+            List<NodeInfo> documents = new ArrayList<>(uris.size());
+            it = sqncs[1].iterate();
+            for (Item item = it.next(); item != null; item = it.next()) {
+                documents.add((NodeInfo) item);
+            }
+            if (uris.size() != documents.size()) {
+                throw new XPathException("There must be as many URIs as documents: got " + uris.size() + " URIs and "
+                        + documents.size() + " documents.");
+            }
+            Item metadataElement = sqncs.length > 3 ? sqncs[3].head() : null;
+            DocumentMetadataHandle metadata = metadataElement == null ? null : BulkWriter.metadata((NodeInfo) metadataElement);
+            BulkWriter writer = BulkWriter.get(config);
+            for (int i = 0; i < uris.size(); i++) {
+                writer.add(uris.get(i), metadata, documents.get(i));
+            }
+            if (config.getWriteFlush() == MarkLogicConfig.WriteFlush.CALL) {
+                writer.flush();
+            }
+            return EmptySequence.getInstance();
+        }
+
+        private QueryTracer.Fingerprint getFingerprint(String moduleOrQuery) {
+            QueryTracer.Fingerprint fingerprint = lastFingerprint;
+            if (fingerprint == null || !fingerprint.isFor(type, moduleOrQuery)) {
+                fingerprint = QueryTracer.fingerprint(type, moduleOrQuery);
+                lastFingerprint = fingerprint;
+            }
+            return fingerprint;
+        }
+
+        /**
+         * Sends the request, hedged and retried as configured.
+         *
+         * @param affinityKey what the host is chosen from, under affinity routing
+         */
+        private MarkLogicSequenceIterator execute(final ExtentionType type, final String moduleOrQuery, final List<ExternalVariable> variables,
+                                                  final String affinityKey, final MarkLogicConfig config, final EvalResultConverter converter) throws XPathException {
+            // Until enough calls are timed, there is no percentile to wait for
+            if (config.getHedge() > 0 && config.getHosts().size() > 1 && latencies.getCount() >= HEDGE_MIN_CALLS) {
+                long delay = (long) (latencies.getPercentileMillis(config.getHedge()) * 1e6);
+                // The host the first request is on, once routed
+                final AtomicReference<ConnectionDescriptor> routed = new AtomicReference<>();
+                // Not the request executor: its threads may all be waiting for a response
+                return HedgedRequest.send(new Callable<MarkLogicSequenceIterator>() {
+                    @Override
+                    public MarkLogicSequenceIterator call() throws XPathException {
+                        return retry(type, moduleOrQuery, variables, affinityKey, config, converter, config.getHosts(), routed);
+                    }
+                }, new HedgedRequest.Hedge() {
+                    @Override
+                    public Callable<MarkLogicSequenceIterator> request() {
+                        ConnectionDescriptor slow = routed.get();
+                        // Sent to the same host, it would only load it more
+                        final List<ConnectionDescriptor> others = slow == null
+                                ? Collections.<ConnectionDescriptor>emptyList()
+                                : HostRouter.getInstance().others(config.getHosts(), slow);
+                        if (others.isEmpty()) {
+                            return null;
+                        }
+                        return new Callable<MarkLogicSequenceIterator>() {
+                            @Override
+                            public MarkLogicSequenceIterator call() throws XPathException {
+                                return retry(type, moduleOrQuery, variables, affinityKey, config, converter, others, null);
+                            }
+                        };
+                    }
+                }, delay, ExtensionExecutors.background());
+            }
+            return retry(type, moduleOrQuery, variables, affinityKey, config, converter, config.getHosts(), null);
+        }
+
+        /**
+         * @param hosts the hosts the request may be sent to
+         * @param routed where to record the host it is sent to, or null
+         */
+        private MarkLogicSequenceIterator retry(ExtentionType type, String moduleOrQuery, List<ExternalVariable> variables,
+                                                String affinityKey, MarkLogicConfig config, EvalResultConverter converter,
+                                                List<ConnectionDescriptor> hosts, AtomicReference<ConnectionDescriptor> routed) throws XPathException {
+            for (int retry = 0; ; retry++) {
+                try {
+                    return send(type, moduleOrQuery, variables, affinityKey, config, converter, hosts, routed);
+                } catch (XPathException | RuntimeException ex) {
+                    if (retry >= config.getRetries() || !Retries.isTransient(ex)) {
+                        throw ex;
+                    }
+                    MarkLogicMetrics.getInstance().recordRetry();
+                    Retries.pause(Retries.delay(config.getRetryDelay(), retry));
+                }
+            }
+        }
+
+        private MarkLogicSequenceIterator send(ExtentionType type, String moduleOrQuery, List<ExternalVariable> variables,
+                                               String affinityKey, MarkLogicConfig config, EvalResultConverter converter,
+                                               List<ConnectionDescriptor> hosts, AtomicReference<ConnectionDescriptor> routed) throws XPathException {
+            HostRouter.Route route = HostRouter.getInstance().route(hosts, config.getRouting(), affinityKey);
+            if (routed != null) {
+                routed.set(route.getHost());
+            }
+            DatabaseClientPool.Lease lease;
+            try {
+                route.admit();
+                lease = DatabaseClientPool.getInstance().acquire(route.getHost(), route);
+            } catch (XPathException | RuntimeException ex) {
+                // Not sent: the route gives its slot back
+                route.run();
+                throw ex;
+            }
+            // Tagged with the function called, whatever the query actually sent
+            CallStatistics statistics = new CallStatistics(getFunctionQName().getLocalPart(), HostRouter.key(route.getHost()));
+            statistics.startNanos = System.nanoTime();
+            try {
+                // Eval query and get result
+                ServerEvaluationCall call = lease.getClient().newServerEval();
+                if (type == ExtentionType.MODULE) {
+                    call.modulePath(moduleOrQuery);
+                } else {
+                    call.xquery(moduleOrQuery);
+                }
+                for (ExternalVariable variable : variables) {
+                    variable.bind(call);
+                }
+                EvalResultIterator result = call.eval();
+                statistics.responseNanos = System.nanoTime();
+                latencies.record(statistics.responseNanos - statistics.startNanos);
+                route.succeeded();
+                return new MarkLogicSequenceIterator(result, converter, lease, statistics);
+            } catch (MarkLogicServerException ex) {
+                // The host answered
+                if (Retries.isTransient(ex)) {
+                    route.overloaded();
+                } else {
+                    route.succeeded();
+                }
+                lease.release();
+                MarkLogicMetrics.getInstance().recordError(statistics.function, statistics.host);
+                throw new XPathException(ex);
+            } catch (RuntimeException ex) {
+                if (HostRouter.unanswered(ex)) {
+                    route.failed();
+                }
+                // Otherwise a failure of the client itself: the host is not to blame
+                lease.release();
+                MarkLogicMetrics.getInstance().recordError(statistics.function, statistics.host);
+                throw ex;
+            } catch (XPathException ex) {
+                lease.release();
+                throw ex;
+            }
+        }
+
+        /**
+         * A request sent by {@link AsyncSequenceIterator}.
+         */
+        private final class Request implements Callable<MarkLogicSequenceIterator> {
+            private final ExtentionType type;
+            private final String moduleOrQuery;
+            private final List<ExternalVariable> variables;
+            private final String affinityKey;
+            private final MarkLogicConfig config;
+            private final EvalResultConverter converter;
+
+            private Request(ExtentionType type, String moduleOrQuery, List<ExternalVariable> variables, String affinityKey,
+                            MarkLogicConfig config, EvalResultConverter converter) {
+                this.type = type;
+                this.moduleOrQuery = moduleOrQuery;
+                this.variables = variables;
+                this.affinityKey = affinityKey;
+                this.config = config;
+                this.converter = converter;
+            }
+
+            @Override
+            public MarkLogicSequenceIterator call() throws XPathException {
+                return execute(type, moduleOrQuery, variables, affinityKey, config, converter);
+            }
+        }
+
+        private MarkLogicConfig getConfig(Sequence[] sqncs) throws XPathException {
+            if (staticConfig != null) {
+                return staticConfig;
+            }
+            if (sqncs.length == 2) {
+                // The config element is usually a global variable: only read it once
+                Item config = sqncs[1].head();
+                ConfigElementMemo memo = lastConfigElement;
+                if (memo != null && config instanceof NodeInfo && memo.node.isSameNodeInfo((NodeInfo) config)) {
+                    return memo.config;
+                }
+                // The argument may be a LazySequence, which cannot be read twice
+                MarkLogicConfig parsed = checkArgs(new Sequence[]{sqncs[0], config});
+                if (config instanceof NodeInfo) {
+                    lastConfigElement = new ConfigElementMemo((NodeInfo) config, parsed);
+                }
+                return parsed;
+            }
+            return checkArgs(sqncs);
+        }
+
+        private EvalResultConverter getConverter(Configuration config) {
+            EvalResultConverter current = cachedConverter;
+            if (current == null || !current.isFor(config)) {
+                // Racing threads may both build one, which is harmless
+                current = new EvalResultConverter(new Processor(config).newDocumentBuilder(), config);
+                cachedConverter = current;
+            }
+            return current;
+        }
     }
 
-    private DatabaseClient createMarkLogicClient(String authentication, String user, String password,
-                                                       String database, String server, Integer port) {
-        DatabaseClientFactory.SecurityContext authContext;
-        switch (authentication) {
-            case "digest":
-                authContext = new DatabaseClientFactory.DigestAuthContext(user, password);
-                break;
-            default:
-                authContext = new DatabaseClientFactory.BasicAuthContext(user, password);
+    private static final class ConfigElementMemo {
+        private final NodeInfo node;
+        private final MarkLogicConfig config;
+
+        private ConfigElementMemo(NodeInfo node, MarkLogicConfig config) {
+            this.node = node;
+            this.config = config;
         }
-        // Init session
-        final DatabaseClient session;
-        if (!(database == null)) {
-            session = DatabaseClientFactory.newClient(server, port, database, authContext);
-        } else {
-            session = DatabaseClientFactory.newClient(server, port, authContext);
+    }
+
+    private String getQuery(Sequence[] sqncs) throws XPathException {
+        try {
+            return ((StringValue) sqncs[0].head()).getStringValue();
+        } catch (ClassCastException ex) {
+            throw new XPathException("The first parameter must be of type: xs:string.");
+        }
+    }
+
+    private static String getString(Sequence sqnc, String name) throws XPathException {
+        Item item = sqnc.head();
+        if (item == null) {
+            throw new XPathException("The " + name + " parameter must not be the empty sequence.");
         }
-        return session;
+        return ((StringValue) item).getStringValue();
     }
 
-    private String[] checkArgs(Sequence[] sqncs) throws XPathException {
-        String server = null, port = null, user = null, password = null, database = null;
+    /**
+     * Reads the connection arguments. <tt>sqncs[0]</tt>, the query, is not read.
+     */
+    MarkLogicConfig checkArgs(Sequence[] sqncs) throws XPathException {
+        List<String> servers = new ArrayList<>();
+        String port = null, user = null, password = null, database = null;
         String authentication = "basic";
+        String prefetch = null, replay = null, async = null, scatter = null, pageSize = null, cache = null, cacheTtl = null, routing = null;
+        String json = null, compact = null, passthrough = null, retries = null, retryDelay = null, hedge = null, writeBatchSize = null, writeThreads = null, writeFlush = null;
+        List<ExternalVariable> variables = null;
         switch (sqncs.length) {
             case 2:
                 try {
@@ -122,7 +570,7 @@ public abstract class AbstractMLExtensionFunction extends ExtensionFunctionDefin
                         if (ni.getNodeKind() == Type.ELEMENT) {
                             switch (ni.getLocalPart()) {
                                 case "server":
-                                    server = ni.getStringValue();
+                                    servers.add(ni.getStringValue());
                                     break;
                                 case "port":
                                     port = ni.getStringValue();
@@ -139,20 +587,136 @@ public abstract class AbstractMLExtensionFunction extends ExtensionFunctionDefin
                                 case "authentication":
                                     authentication = ni.getStringValue();
                                     break;
+                                case "routing":
+                                    routing = ni.getStringValue();
+                                    break;
+                                case "prefetch":
+                                    prefetch = ni.getStringValue();
+                                    break;
+                                case "replay":
+                                    replay = ni.getStringValue();
+                                    break;
+                                case "async":
+                                    async = ni.getStringValue();
+                                    break;
+                                case "scatter":
+                                    scatter = ni.getStringValue();
+                                    break;
+                                case "page-size":
+                                    pageSize = ni.getStringValue();
+                                    break;
+                                case "cache":
+                                    cache = ni.getStringValue();
+                                    break;
+                                case "cache-ttl":
+                                    cacheTtl = ni.getStringValue();
+                                    break;
+                                case "json":
+                                    json = ni.getStringValue();
+                                    break;
+                                case "compact":
+                                    compact = ni.getStringValue();
+                                    break;
+                                case "passthrough":
+                                    passthrough = ni.getStringValue();
+                                    break;
+                                case "retries":
+                                    retries = ni.getStringValue();
+                                    break;
+                                case "retry-delay":
+                                    retryDelay = ni.getStringValue();
+                                    break;
+                                case "hedge":
+                                    hedge = ni.getStringValue();
+                                    break;
+                                case "write-batch-size":
+                                    writeBatchSize = ni.getStringValue();
+                                    break;
+                                case "write-threads":
+                                    writeThreads = ni.getStringValue();
+                                    break;
+                                case "write-flush":
+                                    writeFlush = ni.getStringValue();
+                                    break;
+                                case "variables":
+                                    variables = ExternalVariable.parse(ni);
+                                    break;
                                 default:
-                                    throw new XPathException("Children elements of 'marklogic' must be 'server', 'port', 'user', 'password', 'database'? and 'authentication'?.");
+                                    throw new XPathException("Children elements of 'marklogic' must be 'server'+, 'port', 'user', 'password', 'database'?, 'authentication'?, 'routing'?, 'prefetch'?, 'replay'?, 'async'?, 'scatter'?, 'page-size'?, 'cache'?, 'cache-ttl'?, 'json'?, 'compact'?, 'passthrough'?, 'retries'?, 'retry-delay'?, 'hedge'?, 'write-batch-size'?, 'write-threads'?, 'write-flush'? and 'variables'?.");
                             }
                         }
                     }
-                    return new String[]{
-                            ((StringValue) sqncs[0].head()).getStringValue(),
-                            server,
-                            port,
-                            user,
-                            password,
-                            database,
-                            authentication
-                    };
+                    if (servers.isEmpty()) {
+                        servers.add(null);
+                    }
+                    List<ConnectionDescriptor> hosts = new ArrayList<>(servers.size());
+                    for (String server : servers) {
+                        hosts.add(ConnectionDescriptor.fromArgs(server, port, user, password, database, authentication));
+                    }
+                    MarkLogicConfig config = new MarkLogicConfig(Collections.unmodifiableList(hosts));
+                    if (routing != null) {
+                        config.setRouting(MarkLogicConfig.Routing.parse(routing));
+                    }
+                    if (prefetch != null) {
+                        config.setPrefetch(MarkLogicConfig.parseCount("prefetch", prefetch));
+                    }
+                    if (replay != null) {
+                        config.setReplay(MarkLogicConfig.parseBoolean("replay", replay));
+                    }
+                    if (async != null) {
+                        config.setAsync(MarkLogicConfig.parseBoolean("async", async));
+                    }
+                    if (scatter != null) {
+                        config.setScatter(MarkLogicConfig.Scatter.parse(scatter));
+                    }
+                    if (pageSize != null) {
+                        config.setPageSize(MarkLogicConfig.parseCount("page-size", pageSize));
+                    }
+                    if (cache != null) {
+                        config.setCache(MarkLogicConfig.CacheMode.parse(cache));
+                    }
+                    if (json != null) {
+                        config.setJson(MarkLogicConfig.JsonMode.parse(json));
+                    }
+                    if (compact != null) {
+                        config.setCompact(MarkLogicConfig.parseBoolean("compact", compact));
+                    }
+                    if (cacheTtl != null) {
+                        config.setCacheTtl(MarkLogicConfig.parseCount("cache-ttl", cacheTtl) * 1000L);
+                    }
+                    if (passthrough != null) {
+                        config.setPassthrough(MarkLogicConfig.parseBoolean("passthrough", passthrough));
+                    }
+                    if (retries != null) {
+                        config.setRetries(MarkLogicConfig.parseCount("retries", retries));
+                    }
+                    if (retryDelay != null) {
+                        config.setRetryDelay(MarkLogicConfig.parseCount("retry-delay", retryDelay));
+                    }
+                    if (hedge != null) {
+                        int percentile = MarkLogicConfig.parseCount("hedge", hedge);
+                        if (percentile >= 100) {
+                            throw new XPathException("'hedge' must be a percentile, from 1 to 99, or 0, got '" + hedge + "'.");
+                        }
+                        config.setHedge(percentile);
+                    }
+                    if (writeBatchSize != null) {
+                        config.setWriteBatchSize(MarkLogicConfig.parsePositive("write-batch-size", writeBatchSize));
+                    }
+                    if (writeThreads != null) {
+                        config.setWriteThreads(MarkLogicConfig.parsePositive("write-threads", writeThreads));
+                    }
+                    if (writeFlush != null) {
+                        config.setWriteFlush(MarkLogicConfig.WriteFlush.parse(writeFlush));
+                    }
+                    if (variables != null) {
+                        config.setVariables(variables);
+                    }
+                    if (config.getCache() != MarkLogicConfig.CacheMode.BYPASS && (config.getScatter() != MarkLogicConfig.Scatter.NONE
+                            || config.getPageSize() > 0 || config.isAsync() || config.getPrefetch() > 0 || config.isReplay())) {
+                        throw new XPathException("'cache' cannot be combined with 'scatter', 'page-size', 'async', 'prefetch' or 'replay': a cached result is fetched at once, and can be read again.");
+                    }
+                    return config;
                 } catch (ClassCastException ex) {
                     throw new XPathException("When using the 2 parameters signature, the second parameter must be of type: element(marklogic).");
                 }
@@ -160,22 +724,19 @@ public abstract class AbstractMLExtensionFunction extends ExtensionFunctionDefin
             case 6:
             case 7:
                 try {
-                    if (sqncs.length == 6) {
-                        database = ((StringValue) sqncs[5].head()).getStringValue();
+                    if (sqncs.length >= 6) {
+                        database = getString(sqncs[5], "database");
                     }
                     if (sqncs.length == 7) {
-                        database = ((StringValue) sqncs[5].head()).getStringValue();
-                        authentication = ((StringValue) sqncs[6].head()).getStringValue();
-                    }
-                    return new String[]{
-                            ((StringValue) sqncs[0].head()).getStringValue(),
-                            ((StringValue) sqncs[1].head()).getStringValue(),
-                            ((StringValue) sqncs[2].head()).getStringValue(),
-                            ((StringValue) sqncs[3].head()).getStringValue(),
-                            ((StringValue) sqncs[4].head()).getStringValue(),
+                        authentication = getString(sqncs[6], "authentication");
+                    }
+                    return new MarkLogicConfig(ConnectionDescriptor.fromArgs(
+                            getString(sqncs[1], "server"),
+                            getString(sqncs[2], "port"),
+                            getString(sqncs[3], "user"),
+                            getString(sqncs[4], "password"),
                             database,
-                            authentication
-                    };
+                            authentication));
                 } catch (ClassCastException ex) {
                     throw new XPathException("When using the 5/6/7 parameters signature, all parameters must be of type: xs:string.");
                 }
@@ -0,0 +1,138 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Sends the request as soon as the iterator is created, on another thread,
+ * and only waits for the response when the first item is read. Calls whose
+ * results are not needed right away thus overlap on the network.
+ *
+ * If the iterator is closed before the response arrives, the source is closed
+ * as soon as it is available.
+ */
+final class AsyncSequenceIterator implements SequenceIterator, AutoCloseable {
+
+    private final Request request;
+    private final Future<SequenceIterator> response;
+    private SequenceIterator source;
+    private boolean finished = false;
+
+    AsyncSequenceIterator(Callable<? extends SequenceIterator> request, ExecutorService executor) {
+        this(request, executor, null);
+    }
+
+    /**
+     * @param onResponse run once the response, or the failure, is available
+     */
+    AsyncSequenceIterator(Callable<? extends SequenceIterator> request, ExecutorService executor, final Runnable onResponse) {
+        super();
+        this.request = new Request(request);
+        FutureTask<SequenceIterator> task = new FutureTask<SequenceIterator>(this.request) {
+            @Override
+            protected void done() {
+                if (onResponse != null) {
+                    onResponse.run();
+                }
+            }
+        };
+        this.response = task;
+        executor.execute(task);
+    }
+
+    @Override
+    public Item next() throws XPathException {
+        if (finished) {
+            return null;
+        }
+        if (source == null) {
+            source = await();
+        }
+        Item item = source.next();
+        if (item == null) {
+            finished = true;
+        }
+        return item;
+    }
+
+    private SequenceIterator await() throws XPathException {
+        try {
+            return response.get();
+        } catch (InterruptedException ex) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted while waiting for MarkLogic results.");
+        } catch (ExecutionException ex) {
+            finished = true;
+            Throwable cause = ex.getCause();
+            if (cause instanceof XPathException) {
+                throw (XPathException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new XPathException(cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        response.cancel(false);
+        request.close();
+    }
+
+    @Override
+    public SequenceIterator getAnother() throws XPathException {
+        return null;
+    }
+
+    @Override
+    public int getProperties() {
+        return 0;
+    }
+
+    /**
+     * The background task. It closes what it produced if the iterator was
+     * closed meanwhile.
+     */
+    private static final class Request implements Callable<SequenceIterator> {
+        private final Callable<? extends SequenceIterator> delegate;
+        private SequenceIterator result;
+        private boolean closed = false;
+
+        private Request(Callable<? extends SequenceIterator> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public SequenceIterator call() throws Exception {
+            SequenceIterator it = delegate.call();
+            synchronized (this) {
+                if (closed) {
+                    it.close();
+                } else {
+                    result = it;
+                }
+            }
+            return it;
+        }
+
+        private synchronized void close() {
+            closed = true;
+            if (result != null) {
+                result.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.datamovement.DataMovementManager;
+import com.marklogic.client.datamovement.WriteBatch;
+import com.marklogic.client.datamovement.WriteBatchListener;
+import com.marklogic.client.datamovement.WriteBatcher;
+import com.marklogic.client.datamovement.WriteEvent;
+import com.marklogic.client.datamovement.WriteFailureListener;
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.DocumentMetadataHandle;
+import com.marklogic.client.io.Format;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.query.QueryResult;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.type.Type;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide registry of <tt>WriteBatcher</tt>s, one per connection, batch
+ * size and thread count, so that the documents written by every call of a
+ * transform go through the same batches. The batcher finds the forests and
+ * their hosts itself, and spreads the batches across them.
+ *
+ * Documents are only sent once a batch is full: the rest is sent by
+ * {@link #flush}, and by a shutdown hook for whatever was never flushed.
+ * As batches mix the documents of every call sharing the batcher, a failed
+ * batch is reported to whichever call flushes it next, not to the calls
+ * that queued its documents.
+ */
+final class BulkWriter {
+
+    private static final Logger LOGGER = Logger.getLogger(BulkWriter.class.getName());
+
+    private static final ConcurrentMap<List<Object>, BulkWriter> WRITERS = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                closeAll();
+            }
+        }, "marklogic-ext-write-flush"));
+    }
+
+    private final DatabaseClientPool.Lease lease;
+    private final DataMovementManager manager;
+    private final WriteBatcher batcher;
+    private final AtomicLong written = new AtomicLong();
+    // Failed batches not reported yet
+    private final List<String> failures = new ArrayList<>();
+
+    private BulkWriter(ConnectionDescriptor descriptor, int batchSize, int threads) {
+        super();
+        lease = DatabaseClientPool.getInstance().acquire(descriptor);
+        try {
+            manager = lease.getClient().newDataMovementManager();
+            batcher = manager.newWriteBatcher()
+                    .withJobName("marklogic-ext-write")
+                    .withBatchSize(batchSize)
+                    .withThreadCount(threads)
+                    .onBatchSuccess(new WriteBatchListener() {
+                        @Override
+                        public void processEvent(WriteBatch batch) {
+                            written.addAndGet(batch.getItems().length);
+                        }
+                    })
+                    .onBatchFailure(new WriteFailureListener() {
+                        @Override
+                        public void processFailure(WriteBatch batch, Throwable failure) {
+                            failed(batch, failure);
+                        }
+                    });
+            manager.startJob(batcher);
+        } catch (RuntimeException ex) {
+            lease.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * The writer of the first host of <tt>config</tt>, started on first use.
+     */
+    static BulkWriter get(MarkLogicConfig config) {
+        List<Object> key = key(config);
+        BulkWriter writer = WRITERS.get(key);
+        if (writer == null) {
+            synchronized (WRITERS) {
+                writer = WRITERS.get(key);
+                if (writer == null) {
+                    writer = new BulkWriter(config.getHosts().get(0), config.getWriteBatchSize(), config.getWriteThreads());
+                    WRITERS.put(key, writer);
+                }
+            }
+        }
+        return writer;
+    }
+
+    /**
+     * The writer of the first host of <tt>config</tt>, or null if nothing was
+     * written with it.
+     */
+    static BulkWriter find(MarkLogicConfig config) {
+        return WRITERS.get(key(config));
+    }
+
+    private static List<Object> key(MarkLogicConfig config) {
+        return Arrays.<Object>asList(config.getHosts().get(0), config.getWriteBatchSize(), config.getWriteThreads());
+    }
+
+    /**
+     * Queues a document, sending a batch if it is full.
+     *
+     * @param metadata its collections, permissions and quality, or null
+     */
+    void add(String uri, DocumentMetadataHandle metadata, NodeInfo document) throws XPathException {
+        if (metadata == null) {
+            batcher.add(uri, content(document));
+        } else {
+            batcher.add(uri, metadata, content(document));
+        }
+    }
+
+    /**
+     * Sends the documents queued so far, and waits until every batch is
+     * written.
+     *
+     * @throws XPathException if a batch failed since the last flush, whoever
+     * queued its documents
+     */
+    void flush() throws XPathException {
+        batcher.flushAndWait();
+        List<String> failed;
+        synchronized (failures) {
+            if (failures.isEmpty()) {
+                return;
+            }
+            failed = new ArrayList<>(failures);
+            failures.clear();
+        }
+        throw new XPathException(failed.size() + " batch(es) could not be written to MarkLogic: " + failed.get(0)
+                + (failed.size() > 1 ? " (and " + (failed.size() - 1) + " more)" : ""));
+    }
+
+    /**
+     * The number of documents written so far.
+     */
+    long getWritten() {
+        return written.get();
+    }
+
+    private void failed(WriteBatch batch, Throwable failure) {
+        WriteEvent[] events = batch.getItems();
+        String message = events.length + " documents from " + (events.length > 0 ? events[0].getTargetUri() : "?")
+                + ": " + failure.getMessage();
+        LOGGER.log(Level.WARNING, "Write batch failed: " + message, failure);
+        synchronized (failures) {
+            failures.add(message);
+        }
+    }
+
+    private void close() {
+        try {
+            flush();
+        } catch (XPathException | RuntimeException ex) {
+            LOGGER.log(Level.SEVERE, "Documents were not written to MarkLogic", ex);
+        } finally {
+            manager.stopJob(batcher);
+            manager.release();
+            lease.release();
+        }
+    }
+
+    /**
+     * Flushes and stops every writer.
+     */
+    static void closeAll() {
+        synchronized (WRITERS) {
+            for (BulkWriter writer : WRITERS.values()) {
+                writer.close();
+            }
+            WRITERS.clear();
+        }
+    }
+
+    /**
+     * Reads a <tt>&lt;metadata&gt;</tt> element: <tt>&lt;collection&gt;</tt>*,
+     * <tt>&lt;permission role="..." capability="read|update|insert|execute|node-update"/&gt;</tt>*
+     * and <tt>&lt;quality&gt;</tt>?.
+     */
+    static DocumentMetadataHandle metadata(NodeInfo element) throws XPathException {
+        DocumentMetadataHandle metadata = new DocumentMetadataHandle();
+        AxisIterator iterator = element.iterateAxis(AxisInfo.CHILD);
+        for (NodeInfo ni = iterator.next(); ni != null; ni = iterator.next()) {
+            if (ni.getNodeKind() != Type.ELEMENT) {
+                continue;
+            }
+            switch (ni.getLocalPart()) {
+                case "collection":
+                    metadata.getCollections().add(ni.getStringValue().trim());
+                    break;
+                case "permission":
+                    String role = ni.getAttributeValue("", "role");
+                    String capability = ni.getAttributeValue("", "capability");
+                    if (role == null || capability == null) {
+                        throw new XPathException("'permission' must have a 'role' and a 'capability' attribute.");
+                    }
+                    try {
+                        metadata.getPermissions().add(role, DocumentMetadataHandle.Capability.valueOf(
+                                capability.trim().replace('-', '_').toUpperCase(Locale.ROOT)));
+                    } catch (IllegalArgumentException ex) {
+                        throw new XPathException("'capability' must be 'read', 'update', 'insert', 'execute' or 'node-update', got '" + capability + "'.");
+                    }
+                    break;
+                case "quality":
+                    try {
+                        metadata.setQuality(Integer.parseInt(ni.getStringValue().trim()));
+                    } catch (NumberFormatException ex) {
+                        throw new XPathException("'quality' must be an integer, got '" + ni.getStringValue() + "'.");
+                    }
+                    break;
+                default:
+                    throw new XPathException("Children elements of 'metadata' must be 'collection'*, 'permission'* and 'quality'?.");
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Serializes a document or element as XML, and a text node as text.
+     */
+    static BytesHandle content(NodeInfo node) throws XPathException {
+        switch (node.getNodeKind()) {
+            case Type.DOCUMENT:
+            case Type.ELEMENT:
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                Properties properties = new Properties();
+                properties.setProperty(OutputKeys.METHOD, "xml");
+                properties.setProperty(OutputKeys.ENCODING, "UTF-8");
+                properties.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                QueryResult.serialize(node, new StreamResult(out), properties);
+                return new BytesHandle(out.toByteArray()).withFormat(Format.XML);
+            case Type.TEXT:
+                return new BytesHandle(node.getStringValue().getBytes(StandardCharsets.UTF_8)).withFormat(Format.TEXT);
+            default:
+                throw new XPathException("Only document, element and text nodes can be written, got: " + node.getDisplayName() + ".");
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of the calls of one extension function to one host.
+ */
+final class CallMetrics implements CallMetricsMBean {
+
+    private final String function;
+    private final String host;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong itemsReturned = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong itemsDiscarded = new AtomicLong();
+    private final AtomicLong earlyCloses = new AtomicLong();
+    private final AtomicLong abandonedIterators = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram totalTime = new LatencyHistogram();
+
+    CallMetrics(String function, String host) {
+        super();
+        this.function = function;
+        this.host = host;
+    }
+
+    void record(CallStatistics statistics, long endNanos) {
+        calls.incrementAndGet();
+        itemsReturned.addAndGet(statistics.itemsConsumed);
+        bytesReceived.addAndGet(statistics.bytesConsumed);
+        itemsDiscarded.addAndGet(statistics.itemsDiscarded);
+        parseNanos.addAndGet(statistics.parseNanos);
+        if (statistics.closedEarly) {
+            earlyCloses.incrementAndGet();
+        }
+        if (statistics.abandoned) {
+            abandonedIterators.incrementAndGet();
+        }
+        timeToFirstByte.record(statistics.responseNanos - statistics.startNanos);
+        totalTime.record(endNanos - statistics.startNanos);
+    }
+
+    void recordError() {
+        errors.incrementAndGet();
+    }
+
+    LatencyHistogram getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    LatencyHistogram getTotalTime() {
+        return totalTime;
+    }
+
+    @Override
+    public String getFunction() {
+        return function;
+    }
+
+    @Override
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public long getItemsReturned() {
+        return itemsReturned.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public long getItemsDiscarded() {
+        return itemsDiscarded.get();
+    }
+
+    @Override
+    public long getEarlyCloses() {
+        return earlyCloses.get();
+    }
+
+    @Override
+    public long getAbandonedIterators() {
+        return abandonedIterators.get();
+    }
+
+    @Override
+    public int getOutstandingRequests() {
+        return HostRouter.getInstance().getOutstanding(host);
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return HostRouter.getInstance().getConcurrencyLimit(host);
+    }
+
+    @Override
+    public double getTimeToFirstByteMean() {
+        return timeToFirstByte.getMeanMillis();
+    }
+
+    @Override
+    public double getTimeToFirstByte50thPercentile() {
+        return timeToFirstByte.getPercentileMillis(50);
+    }
+
+    @Override
+    public double getTimeToFirstByte99thPercentile() {
+        return timeToFirstByte.getPercentileMillis(99);
+    }
+
+    @Override
+    public double getTimeToFirstByteMax() {
+        return timeToFirstByte.getMaxMillis();
+    }
+
+    @Override
+    public double getTotalTimeMean() {
+        return totalTime.getMeanMillis();
+    }
+
+    @Override
+    public double getTotalTime50thPercentile() {
+        return totalTime.getPercentileMillis(50);
+    }
+
+    @Override
+    public double getTotalTime99thPercentile() {
+        return totalTime.getPercentileMillis(99);
+    }
+
+    @Override
+    public double getTotalTimeMax() {
+        return totalTime.getMaxMillis();
+    }
+
+    @Override
+    public double getParseTimePerItem() {
+        long items = itemsReturned.get();
+        return items == 0 ? 0 : parseNanos.get() / 1e3 / items;
+    }
+}
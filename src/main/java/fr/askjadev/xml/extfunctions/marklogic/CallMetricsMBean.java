@@ -0,0 +1,72 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+/**
+ * JMX view of the calls of one extension function to one host. Durations
+ * are in milliseconds.
+ */
+public interface CallMetricsMBean {
+
+    String getFunction();
+
+    String getHost();
+
+    /**
+     * Requests answered with results.
+     */
+    long getCalls();
+
+    /**
+     * Requests answered with an error, or not answered.
+     */
+    long getErrors();
+
+    long getItemsReturned();
+
+    long getBytesReceived();
+
+    long getItemsDiscarded();
+
+    long getEarlyCloses();
+
+    long getAbandonedIterators();
+
+    /**
+     * Requests to this host not released yet, by any function.
+     */
+    int getOutstandingRequests();
+
+    /**
+     * Requests this host is currently allowed to process at the same time,
+     * by any function; 0 if there is no limit.
+     */
+    int getConcurrencyLimit();
+
+    /**
+     * From the request to its response. The client reads the whole response
+     * before returning it, so this includes the transfer.
+     */
+    double getTimeToFirstByteMean();
+
+    double getTimeToFirstByte50thPercentile();
+
+    double getTimeToFirstByte99thPercentile();
+
+    double getTimeToFirstByteMax();
+
+    /**
+     * From the request to the end of its results, including the time they
+     * take to be read.
+     */
+    double getTotalTimeMean();
+
+    double getTotalTime50thPercentile();
+
+    double getTotalTime99thPercentile();
+
+    double getTotalTimeMax();
+
+    /**
+     * Mean time to parse an item, in microseconds.
+     */
+    double getParseTimePerItem();
+}
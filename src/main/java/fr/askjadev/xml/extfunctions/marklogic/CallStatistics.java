@@ -0,0 +1,31 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+/**
+ * What one call read from MarkLogic. Only updated by the thread reading the
+ * results, and recorded in {@link MarkLogicMetrics} when they are closed.
+ */
+final class CallStatistics {
+
+    // The extension function and the host, null when not known
+    final String function;
+    final String host;
+    // System.nanoTime() when the request was sent, and when its response arrived
+    long startNanos;
+    long responseNanos;
+    long parseNanos;
+    long itemsConsumed;
+    long bytesConsumed;
+    long itemsDiscarded;
+    boolean closedEarly;
+    boolean abandoned;
+
+    CallStatistics() {
+        this(null, null);
+    }
+
+    CallStatistics(String function, String host) {
+        super();
+        this.function = function;
+        this.host = host;
+    }
+}
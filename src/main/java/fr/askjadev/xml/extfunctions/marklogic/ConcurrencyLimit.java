@@ -0,0 +1,142 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * Bounds the number of requests a host is processing at the same time, the
+ * bound adapting to what the host sustains (AIMD): it grows by one for each
+ * round of requests answered in time while it is reached, and is halved when
+ * the host is overloaded (502, 503, 504 or no answer), at most once per
+ * second. A request waits for a slot before being sent.
+ *
+ * With a latency tolerance, a response slower than that many times the
+ * fastest recent one also counts as a sign of overload, the bound then
+ * decreasing by 10%. It is off by default, since the requests sent to a host
+ * run queries of very different costs.
+ */
+final class ConcurrencyLimit {
+
+    // Overloads in the same burst only halve the limit once
+    private static final long DECREASE_INTERVAL = 1000000000L;
+    // The fastest response is forgotten after that many, so that it follows the host
+    private static final int LATENCY_WINDOW = 500;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+    private long fastest;
+    private long fastestInWindow;
+    private int samples;
+
+    /**
+     * @param maxLimit 0 for no limit
+     * @param latencyTolerance 0 not to look at response times
+     */
+    ConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, double latencyTolerance) {
+        super();
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.limit = Math.max(this.minLimit, Math.min(initialLimit, maxLimit));
+        this.lastDecrease = System.nanoTime() - DECREASE_INTERVAL;
+    }
+
+    /**
+     * Waits for a slot.
+     *
+     * @param timeout in milliseconds
+     * @throws XPathException if no slot was free in time
+     */
+    synchronized void acquire(long timeout) throws XPathException {
+        if (maxLimit > 0) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (inFlight >= (int) limit) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new XPathException("No request slot freed on the MarkLogic host within " + timeout
+                            + " ms (limit: " + (int) limit + " concurrent requests).");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new XPathException("Interrupted while waiting for a request slot on the MarkLogic host.", ex);
+                }
+            }
+        }
+        inFlight++;
+    }
+
+    /**
+     * Frees the slot of a request, and adapts the limit to its outcome.
+     *
+     * @param latency the time to its response in nanoseconds, negative if
+     *                not known
+     * @param overloaded whether the host was overloaded
+     */
+    synchronized void release(long latency, boolean overloaded) {
+        // The limit was reached while this request was in flight
+        boolean saturated = inFlight >= (int) limit;
+        inFlight--;
+        if (maxLimit > 0) {
+            if (overloaded) {
+                decrease(0.5);
+            } else if (latency >= 0) {
+                if (tooSlow(latency)) {
+                    decrease(0.9);
+                } else if (saturated) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    private boolean tooSlow(long latency) {
+        if (latencyTolerance <= 0) {
+            return false;
+        }
+        if (fastestInWindow == 0 || latency < fastestInWindow) {
+            fastestInWindow = latency;
+        }
+        if (fastest == 0 || latency < fastest) {
+            fastest = latency;
+        }
+        if (++samples >= LATENCY_WINDOW) {
+            fastest = fastestInWindow;
+            fastestInWindow = 0;
+            samples = 0;
+        }
+        return latency > latencyTolerance * fastest;
+    }
+
+    private void decrease(double factor) {
+        long now = System.nanoTime();
+        if (now - lastDecrease < DECREASE_INTERVAL) {
+            return;
+        }
+        lastDecrease = now;
+        limit = Math.max(minLimit, limit * factor);
+    }
+
+    /**
+     * Whether a request would be sent without waiting.
+     */
+    synchronized boolean hasRoom() {
+        return maxLimit <= 0 || inFlight < (int) limit;
+    }
+
+    /**
+     * The current limit, 0 if there is none.
+     */
+    synchronized int getLimit() {
+        return maxLimit > 0 ? (int) limit : 0;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,110 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.trans.XPathException;
+
+import java.util.Objects;
+
+/**
+ * The connection parameters of a MarkLogic HTTP server, as read from the
+ * extension function arguments. Two descriptors are equal when they would
+ * produce equivalent <tt>DatabaseClient</tt>s, so a descriptor can be used
+ * as a key to share clients between calls.
+ */
+final class ConnectionDescriptor {
+
+    private final String server;
+    private final int port;
+    private final String user;
+    private final String password;
+    private final String database;
+    private final String authentication;
+
+    ConnectionDescriptor(String server, int port, String user, String password, String database, String authentication) {
+        super();
+        this.server = server;
+        this.port = port;
+        this.user = user;
+        this.password = password;
+        this.database = database;
+        this.authentication = authentication == null ? "basic" : authentication;
+    }
+
+    /**
+     * Builds a descriptor from the raw string arguments. <tt>server</tt> may
+     * be given as <tt>host:port</tt>, in which case <tt>port</tt> is ignored.
+     *
+     * @throws XPathException if the port is not a number
+     */
+    static ConnectionDescriptor fromArgs(String server, String port, String user, String password,
+                                         String database, String authentication) throws XPathException {
+        if (server != null) {
+            server = server.trim();
+            int colon = server.lastIndexOf(':');
+            // Leave IPv6 addresses alone, unless they are bracketed
+            if (colon > 0 && (server.indexOf(':') == colon || server.charAt(colon - 1) == ']')) {
+                port = server.substring(colon + 1);
+                server = server.substring(0, colon);
+            }
+        }
+        if (server == null || port == null) {
+            throw new XPathException("MarkLogic 'server' and 'port' must be supplied.");
+        }
+        try {
+            return new ConnectionDescriptor(server, Integer.parseInt(port.trim()), user, password, database, authentication);
+        } catch (NumberFormatException ex) {
+            throw new XPathException("MarkLogic port must be an integer, got '" + port + "'.");
+        }
+    }
+
+    String getServer() {
+        return server;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    String getUser() {
+        return user;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    String getDatabase() {
+        return database;
+    }
+
+    String getAuthentication() {
+        return authentication;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ConnectionDescriptor)) {
+            return false;
+        }
+        ConnectionDescriptor other = (ConnectionDescriptor) obj;
+        return port == other.port
+                && server.equals(other.server)
+                && Objects.equals(user, other.user)
+                && Objects.equals(password, other.password)
+                && Objects.equals(database, other.database)
+                && authentication.equals(other.authentication);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(server, port, user, password, database, authentication);
+    }
+
+    @Override
+    public String toString() {
+        // Never print the password
+        return authentication + "://" + user + "@" + server + ":" + port + (database == null ? "" : "/" + database);
+    }
+}
@@ -0,0 +1,74 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a stream. Once the end of the stream has been
+ * reached, reads keep returning -1 without reading the stream again, and
+ * closing it more than once has no effect: MIME part streams throw an
+ * exception in both cases.
+ */
+final class CountingInputStream extends FilterInputStream {
+
+    private long count;
+    private boolean ended;
+    private boolean closed;
+
+    CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (ended) {
+            return -1;
+        }
+        int b = super.read();
+        if (b >= 0) {
+            count++;
+        } else {
+            ended = true;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (ended) {
+            return -1;
+        }
+        int n = super.read(buffer, offset, length);
+        if (n > 0) {
+            count += n;
+        } else if (n < 0) {
+            ended = true;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            super.close();
+        }
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
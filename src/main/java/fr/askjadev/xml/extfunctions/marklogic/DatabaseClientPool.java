@@ -0,0 +1,265 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.DatabaseClientFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide registry of <tt>DatabaseClient</tt>s, keyed by
+ * {@link ConnectionDescriptor}. Each call leases a client and releases it when
+ * its result iterator is closed, so repeated calls to the same server reuse
+ * the same HTTP connection pool and authentication state.
+ *
+ * Clients that have not been leased for <tt>idleTimeout</tt> milliseconds are
+ * released. At most <tt>maxClients</tt> clients are kept; when the pool is
+ * full and no client is idle, the call gets a private client which is released
+ * with the lease.
+ *
+ * Limits can be changed with the system properties
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.pool.maxClients</tt> (default 16) and
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.pool.idleTimeout</tt> (ms, default 60000).
+ */
+final class DatabaseClientPool {
+
+    static final String PROPERTY_PREFIX = "fr.askjadev.xml.extfunctions.marklogic.pool.";
+
+    private static final DatabaseClientPool INSTANCE = new DatabaseClientPool(
+            Integer.getInteger(PROPERTY_PREFIX + "maxClients", 16),
+            Long.getLong(PROPERTY_PREFIX + "idleTimeout", 60000L));
+
+    private final int maxClients;
+    private final long idleTimeout;
+    // Access-ordered, so that the first idle entry is the least recently used
+    private final LinkedHashMap<ConnectionDescriptor, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicInteger privateClients = new AtomicInteger();
+
+    DatabaseClientPool(int maxClients, long idleTimeout) {
+        super();
+        this.maxClients = maxClients;
+        this.idleTimeout = idleTimeout;
+    }
+
+    static DatabaseClientPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Leases a client for the given connection. The lease must be released
+     * once the client is no longer used.
+     */
+    Lease acquire(ConnectionDescriptor descriptor) {
+        return acquire(descriptor, null);
+    }
+
+    /**
+     * Leases a client, and runs <tt>onRelease</tt> when the lease is released.
+     */
+    Lease acquire(ConnectionDescriptor descriptor, Runnable onRelease) {
+        List<DatabaseClient> toRelease = new ArrayList<>();
+        Lease lease;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            collectIdle(now, toRelease);
+            Entry entry = entries.get(descriptor);
+            if (entry == null && entries.size() >= maxClients) {
+                evictLeastRecentlyUsedIdle(toRelease);
+            }
+            if (entry == null && entries.size() < maxClients) {
+                entry = new Entry(createMarkLogicClient(descriptor));
+                entries.put(descriptor, entry);
+            }
+            if (entry != null) {
+                entry.leases++;
+                entry.lastUsed = now;
+                lease = new Lease(this, entry, entry.client, onRelease);
+            } else {
+                // Pool is full of busy clients: hand out a private one
+                privateClients.incrementAndGet();
+                lease = new Lease(this, null, createMarkLogicClient(descriptor), onRelease);
+            }
+        }
+        releaseAll(toRelease);
+        return lease;
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.leases--;
+        entry.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Releases clients that have been idle for longer than the idle timeout.
+     */
+    void evictIdle() {
+        List<DatabaseClient> toRelease = new ArrayList<>();
+        synchronized (this) {
+            collectIdle(System.currentTimeMillis(), toRelease);
+        }
+        releaseAll(toRelease);
+    }
+
+    /**
+     * Releases every idle client and forgets the busy ones, which will be
+     * released by their last lease.
+     */
+    void clear() {
+        List<DatabaseClient> toRelease = new ArrayList<>();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                entry.evicted = true;
+                if (entry.leases == 0) {
+                    toRelease.add(entry.client);
+                }
+            }
+            entries.clear();
+        }
+        releaseAll(toRelease);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    int getMaxClients() {
+        return maxClients;
+    }
+
+    /**
+     * Pooled clients with at least one lease.
+     */
+    synchronized int getBusyClients() {
+        int busy = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.leases > 0) {
+                busy++;
+            }
+        }
+        return busy;
+    }
+
+    /**
+     * Clients handed out because the pool was full, and not released yet.
+     */
+    int getPrivateClients() {
+        return privateClients.get();
+    }
+
+    private void collectIdle(long now, List<DatabaseClient> toRelease) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.leases == 0 && now - entry.lastUsed >= idleTimeout) {
+                it.remove();
+                entry.evicted = true;
+                toRelease.add(entry.client);
+            }
+        }
+    }
+
+    private void evictLeastRecentlyUsedIdle(List<DatabaseClient> toRelease) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.leases == 0) {
+                it.remove();
+                entry.evicted = true;
+                toRelease.add(entry.client);
+                return;
+            }
+        }
+    }
+
+    private static void releaseAll(List<DatabaseClient> clients) {
+        for (DatabaseClient client : clients) {
+            releaseQuietly(client);
+        }
+    }
+
+    private static void releaseQuietly(DatabaseClient client) {
+        try {
+            client.release();
+        } catch (Exception ex) {
+            Logger.getLogger(DatabaseClientPool.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    private static DatabaseClient createMarkLogicClient(ConnectionDescriptor descriptor) {
+        DatabaseClientFactory.SecurityContext authContext;
+        switch (descriptor.getAuthentication()) {
+            case "digest":
+                authContext = new DatabaseClientFactory.DigestAuthContext(descriptor.getUser(), descriptor.getPassword());
+                break;
+            default:
+                authContext = new DatabaseClientFactory.BasicAuthContext(descriptor.getUser(), descriptor.getPassword());
+        }
+        // Init session
+        if (descriptor.getDatabase() != null) {
+            return DatabaseClientFactory.newClient(descriptor.getServer(), descriptor.getPort(), descriptor.getDatabase(), authContext);
+        } else {
+            return DatabaseClientFactory.newClient(descriptor.getServer(), descriptor.getPort(), authContext);
+        }
+    }
+
+    private static final class Entry {
+        private final DatabaseClient client;
+        private int leases;
+        private long lastUsed;
+        private boolean evicted;
+
+        private Entry(DatabaseClient client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * A client handed out by the pool. Releasing a lease more than once has no
+     * effect.
+     */
+    static final class Lease {
+        private final DatabaseClientPool pool;
+        private final Entry entry;
+        private final DatabaseClient client;
+        private final Runnable onRelease;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease(DatabaseClientPool pool, Entry entry, DatabaseClient client, Runnable onRelease) {
+            this.pool = pool;
+            this.entry = entry;
+            this.client = client;
+            this.onRelease = onRelease;
+        }
+
+        DatabaseClient getClient() {
+            return client;
+        }
+
+        void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            if (onRelease != null) {
+                onRelease.run();
+            }
+            if (entry == null) {
+                pool.privateClients.decrementAndGet();
+                releaseQuietly(client);
+                return;
+            }
+            boolean orphan;
+            synchronized (pool) {
+                pool.release(entry);
+                // The entry was dropped from the pool while we held it
+                orphan = entry.evicted && entry.leases == 0;
+            }
+            if (orphan) {
+                releaseQuietly(client);
+            }
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.eval.EvalResult;
+import com.marklogic.client.io.BytesHandle;
+import com.marklogic.client.io.InputStreamHandle;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.ProxyReceiver;
+import net.sf.saxon.event.Sender;
+import net.sf.saxon.event.SequenceReceiver;
+import net.sf.saxon.expr.parser.ExplicitLocation;
+import net.sf.saxon.lib.ConversionRules;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.util.Orphan;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.value.AnyURIValue;
+import net.sf.saxon.value.Base64BinaryValue;
+import net.sf.saxon.value.BooleanValue;
+import net.sf.saxon.value.Int64Value;
+import net.sf.saxon.value.StringValue;
+import net.sf.saxon.value.UntypedAtomicValue;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Converts the items returned by MarkLogic into Saxon items, according to
+ * their <tt>X-Primitive</tt> type. Only XML nodes are parsed into trees;
+ * atomic values are mapped to the corresponding Saxon atomic values. JSON
+ * values are returned as strings, or as maps and arrays. XML nodes can also
+ * be sent as events to a receiver, without building any tree.
+ *
+ * A converter holds no per-call state and its <tt>DocumentBuilder</tt> is
+ * never reconfigured once created, so one converter can be shared by all the
+ * threads using the same <tt>Configuration</tt>.
+ */
+final class EvalResultConverter {
+
+    private final DocumentBuilder builder;
+    private final Configuration config;
+    private final ConversionRules rules;
+    private final JsonResults json;
+    private final MarkLogicConfig.JsonMode jsonMode;
+    private final boolean compact;
+
+    EvalResultConverter(DocumentBuilder builder, Configuration config) {
+        this(builder, config, new JsonResults(config), MarkLogicConfig.JsonMode.STRING, false);
+    }
+
+    private EvalResultConverter(DocumentBuilder builder, Configuration config, JsonResults json,
+                                MarkLogicConfig.JsonMode jsonMode, boolean compact) {
+        super();
+        this.builder = builder;
+        this.config = config;
+        this.rules = config.getConversionRules();
+        this.json = json;
+        this.jsonMode = jsonMode;
+        this.compact = compact;
+    }
+
+    /**
+     * A converter sharing this one's builder, converting JSON values as
+     * given. A compact converter always returns maps and arrays.
+     */
+    EvalResultConverter withJson(MarkLogicConfig.JsonMode jsonMode, boolean compact) {
+        if (compact) {
+            jsonMode = MarkLogicConfig.JsonMode.MAP;
+        }
+        if (jsonMode == this.jsonMode && compact == this.compact) {
+            return this;
+        }
+        return new EvalResultConverter(builder, config, json, jsonMode, compact);
+    }
+
+    /**
+     * Whether the results are sent as a single array by
+     * {@link JsonResults#COMPACT_WRAPPER}: its members are the actual results.
+     */
+    boolean isCompact() {
+        return compact;
+    }
+
+    boolean isFor(Configuration configuration) {
+        return config == configuration;
+    }
+
+    /**
+     * Converts one result, and counts its size in <tt>statistics</tt>.
+     *
+     * @return the item, or <tt>null</tt> if the result stands for no item
+     * (a JSON <tt>null</tt>)
+     */
+    Item convert(EvalResult result, CallStatistics statistics) throws XPathException {
+        EvalResult.Type type = result.getType();
+        if (type == null) {
+            return parse(result, statistics);
+        }
+        switch (type) {
+            case XML:
+                return parse(result, statistics);
+            case NULL:
+                return null;
+            case JSON:
+                if (jsonMode == MarkLogicConfig.JsonMode.MAP) {
+                    return parseJson(result, statistics);
+                }
+                return new StringValue(text(result, statistics));
+            case STRING:
+                return new StringValue(text(result, statistics));
+            case BOOLEAN:
+                return BooleanValue.get(result.getBoolean());
+            case ANYURI:
+                return new AnyURIValue(text(result, statistics));
+            case INTEGER:
+                String integer = text(result, statistics).trim();
+                try {
+                    return Int64Value.makeIntegerValue(Long.parseLong(integer));
+                } catch (NumberFormatException ex) {
+                    // Too big for a long
+                    return atomic(BuiltInAtomicType.INTEGER, integer);
+                }
+            case DECIMAL:
+                return atomic(BuiltInAtomicType.DECIMAL, text(result, statistics));
+            case DOUBLE:
+                return atomic(BuiltInAtomicType.DOUBLE, text(result, statistics));
+            case FLOAT:
+                return atomic(BuiltInAtomicType.FLOAT, text(result, statistics));
+            case DATE:
+                return atomic(BuiltInAtomicType.DATE, text(result, statistics));
+            case DATETIME:
+                return atomic(BuiltInAtomicType.DATE_TIME, text(result, statistics));
+            case TIME:
+                return atomic(BuiltInAtomicType.TIME, text(result, statistics));
+            case DURATION:
+                return atomic(BuiltInAtomicType.DURATION, text(result, statistics));
+            case GDAY:
+                return atomic(BuiltInAtomicType.G_DAY, text(result, statistics));
+            case GMONTH:
+                return atomic(BuiltInAtomicType.G_MONTH, text(result, statistics));
+            case GMONTHDAY:
+                return atomic(BuiltInAtomicType.G_MONTH_DAY, text(result, statistics));
+            case GYEAR:
+                return atomic(BuiltInAtomicType.G_YEAR, text(result, statistics));
+            case GYEARMONTH:
+                return atomic(BuiltInAtomicType.G_YEAR_MONTH, text(result, statistics));
+            case HEXBINARY:
+                return atomic(BuiltInAtomicType.HEX_BINARY, text(result, statistics));
+            case BASE64BINARY:
+                return atomic(BuiltInAtomicType.BASE64_BINARY, text(result, statistics));
+            case BINARY:
+                byte[] bytes = result.get(new BytesHandle()).get();
+                statistics.bytesConsumed += bytes.length;
+                return new Base64BinaryValue(bytes);
+            case TEXTNODE:
+                Orphan text = new Orphan(config);
+                text.setNodeKind(Type.TEXT);
+                text.setStringValue(text(result, statistics));
+                return text;
+            case COMMENT:
+            case PROCESSINGINSTRUCTION:
+                // Sent serialized: parse it and return the node itself
+                return parseSingleChild(text(result, statistics));
+            default:
+                // QName (no namespace context), attribute (no name) and others
+                return new UntypedAtomicValue(text(result, statistics));
+        }
+    }
+
+    /**
+     * Writes one result to <tt>out</tt>: XML is parsed straight into it,
+     * other results are converted and appended.
+     */
+    void send(EvalResult result, SequenceReceiver out, CallStatistics statistics) throws XPathException {
+        EvalResult.Type type = result.getType();
+        if (type != null && type != EvalResult.Type.XML) {
+            Item item = convert(result, statistics);
+            if (item != null) {
+                out.append(item, ExplicitLocation.UNKNOWN_LOCATION, NodeInfo.ALL_NAMESPACES);
+            }
+            return;
+        }
+        try (CountingInputStream in = new CountingInputStream(result.get(new InputStreamHandle()).get())) {
+            Sender.send(new StreamSource(in), new ContentReceiver(out), config.getParseOptions());
+            statistics.bytesConsumed += in.getCount();
+        } catch (IOException ex) {
+            throw new XPathException(ex);
+        }
+    }
+
+    private static String text(EvalResult result, CallStatistics statistics) {
+        String text = result.getString();
+        // Close enough for the mostly ASCII lexical forms of atomic values
+        statistics.bytesConsumed += text.length();
+        return text;
+    }
+
+    private Item atomic(BuiltInAtomicType type, String value) throws XPathException {
+        return type.getStringConverter(rules).convertString(value.trim()).asAtomic();
+    }
+
+    private Item parse(EvalResult result, CallStatistics statistics) throws XPathException {
+        // Parse straight from the multipart body; closing the part stream releases its buffer
+        try (CountingInputStream in = new CountingInputStream(result.get(new InputStreamHandle()).get())) {
+            Item node = builder.build(new StreamSource(in)).getUnderlyingNode();
+            statistics.bytesConsumed += in.getCount();
+            return node;
+        } catch (SaxonApiException | IOException ex) {
+            throw new XPathException(ex);
+        }
+    }
+
+    private Item parseJson(EvalResult result, CallStatistics statistics) throws XPathException {
+        try (CountingInputStream in = new CountingInputStream(result.get(new InputStreamHandle()).get())) {
+            Item item = json.parse(in);
+            statistics.bytesConsumed += in.getCount();
+            return item;
+        } catch (IOException ex) {
+            throw new XPathException(ex);
+        }
+    }
+
+    private Item parseSingleChild(String serialized) throws XPathException {
+        try {
+            NodeInfo doc = builder.build(new StreamSource(new StringReader(serialized))).getUnderlyingNode();
+            return doc.iterateAxis(AxisInfo.CHILD).next();
+        } catch (SaxonApiException ex) {
+            throw new XPathException(ex);
+        }
+    }
+
+    /**
+     * Forwards the events of a parsed document, but neither opens nor closes
+     * the output, which belongs to the caller, nor changes its settings.
+     */
+    private static final class ContentReceiver extends ProxyReceiver {
+
+        private ContentReceiver(SequenceReceiver out) {
+            super(out);
+        }
+
+        @Override
+        public void setPipelineConfiguration(PipelineConfiguration pipe) {
+            pipelineConfiguration = pipe;
+        }
+
+        @Override
+        public void setSystemId(String systemId) {
+            this.systemId = systemId;
+        }
+
+        @Override
+        public void open() {
+            // The output is already open
+        }
+
+        @Override
+        public void close() {
+            // Closed by its owner
+        }
+    }
+}
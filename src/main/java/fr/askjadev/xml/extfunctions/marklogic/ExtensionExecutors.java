@@ -0,0 +1,70 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads used by the extension for background work. They are daemon
+ * threads, so that they never keep the JVM alive once the transform is over.
+ *
+ * The number of requests sent asynchronously at the same time can be changed
+ * with the system property
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.async.threads</tt> (default 8).
+ */
+final class ExtensionExecutors {
+
+    private static final ExecutorService BACKGROUND = Executors.newCachedThreadPool(new DaemonThreadFactory("marklogic-ext-background"));
+
+    private static final ExecutorService REQUESTS = newRequestExecutor(
+            Integer.getInteger("fr.askjadev.xml.extfunctions.marklogic.async.threads", 8));
+
+    private ExtensionExecutors() {
+        super();
+    }
+
+    /**
+     * Unbounded executor for tasks tied to one result iterator, such as
+     * reading ahead. Their number is bounded by the number of open iterators.
+     */
+    static ExecutorService background() {
+        return BACKGROUND;
+    }
+
+    /**
+     * Bounded executor for requests sent asynchronously. When all its threads
+     * are busy and its queue is full, the request is sent by the calling
+     * thread, as if it were synchronous.
+     */
+    static ExecutorService requests() {
+        return REQUESTS;
+    }
+
+    private static ExecutorService newRequestExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(threads * 8), new DaemonThreadFactory("marklogic-ext-request"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    static final class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
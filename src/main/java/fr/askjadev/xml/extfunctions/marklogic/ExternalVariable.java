@@ -0,0 +1,167 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.eval.ServerEvaluationCall;
+import com.marklogic.client.io.Format;
+import com.marklogic.client.io.StringHandle;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.query.QueryResult;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.type.Type;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * An external variable bound to the query or module, read from a
+ * <tt>&lt;variable name="..." type="..."&gt;value&lt;/variable&gt;</tt> child
+ * of the <tt>&lt;variables&gt;</tt> element. Binding values instead of
+ * writing them into the query text lets MarkLogic reuse the compiled query.
+ *
+ * <tt>type</tt> is one of <tt>xs:string</tt> (the default),
+ * <tt>xs:integer</tt>, <tt>xs:decimal</tt>, <tt>xs:double</tt>,
+ * <tt>xs:boolean</tt> and <tt>element()</tt>; the latter sends the child
+ * element of the variable element.
+ */
+final class ExternalVariable {
+
+    private final String name;
+    private final String type;
+    private final String value;
+
+    ExternalVariable(String name, String type, String value) {
+        super();
+        this.name = name;
+        this.type = type;
+        this.value = value;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    /**
+     * The lexical value, or the serialized element for <tt>element()</tt>.
+     */
+    String getValue() {
+        return value;
+    }
+
+    /**
+     * Reads the children of a <tt>&lt;variables&gt;</tt> element.
+     */
+    static List<ExternalVariable> parse(NodeInfo variables) throws XPathException {
+        List<ExternalVariable> result = new ArrayList<>();
+        AxisIterator iterator = variables.iterateAxis(AxisInfo.CHILD);
+        for (NodeInfo ni = iterator.next(); ni != null; ni = iterator.next()) {
+            if (ni.getNodeKind() != Type.ELEMENT) {
+                continue;
+            }
+            if (!"variable".equals(ni.getLocalPart())) {
+                throw new XPathException("Children elements of 'variables' must be 'variable'.");
+            }
+            String name = ni.getAttributeValue("", "name");
+            if (name == null) {
+                throw new XPathException("A 'variable' element must have a 'name' attribute.");
+            }
+            String type = ni.getAttributeValue("", "type");
+            if (type == null) {
+                type = "xs:string";
+            }
+            String value;
+            switch (type) {
+                case "xs:string":
+                case "xs:integer":
+                case "xs:decimal":
+                case "xs:double":
+                case "xs:boolean":
+                    value = ni.getStringValue();
+                    break;
+                case "element()":
+                    value = serialize(firstChildElement(ni, name));
+                    break;
+                default:
+                    throw new XPathException("The type of variable '" + name + "' must be 'xs:string', 'xs:integer', "
+                            + "'xs:decimal', 'xs:double', 'xs:boolean' or 'element()'.");
+            }
+            result.add(new ExternalVariable(name, type, value));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Binds the variable to a call.
+     */
+    void bind(ServerEvaluationCall call) throws XPathException {
+        try {
+            switch (type) {
+                case "xs:integer":
+                    call.addVariable(name, new BigInteger(value.trim()));
+                    break;
+                case "xs:decimal":
+                    call.addVariable(name, new BigDecimal(value.trim()));
+                    break;
+                case "xs:double":
+                    call.addVariable(name, Double.valueOf(value.trim()));
+                    break;
+                case "xs:boolean":
+                    call.addVariable(name, MarkLogicConfig.parseBoolean(name, value));
+                    break;
+                case "element()":
+                    call.addVariable(name, new StringHandle(value).withFormat(Format.XML));
+                    break;
+                default:
+                    call.addVariable(name, value);
+            }
+        } catch (NumberFormatException ex) {
+            throw new XPathException("Variable '" + name + "' is not a valid " + type + ": '" + value + "'.");
+        }
+    }
+
+    private static NodeInfo firstChildElement(NodeInfo variable, String name) throws XPathException {
+        AxisIterator iterator = variable.iterateAxis(AxisInfo.CHILD);
+        for (NodeInfo ni = iterator.next(); ni != null; ni = iterator.next()) {
+            if (ni.getNodeKind() == Type.ELEMENT) {
+                return ni;
+            }
+        }
+        throw new XPathException("Variable '" + name + "' is of type element() but has no child element.");
+    }
+
+    private static String serialize(NodeInfo element) throws XPathException {
+        Properties properties = new Properties();
+        properties.setProperty(OutputKeys.METHOD, "xml");
+        properties.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        properties.setProperty(OutputKeys.INDENT, "no");
+        StringWriter writer = new StringWriter();
+        QueryResult.serialize(element, new StreamResult(writer), properties);
+        return writer.toString();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof ExternalVariable)) {
+            return false;
+        }
+        ExternalVariable other = (ExternalVariable) obj;
+        return name.equals(other.name) && type.equals(other.type) && value.equals(other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, type, value);
+    }
+}
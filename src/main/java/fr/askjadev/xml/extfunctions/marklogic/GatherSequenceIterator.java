@@ -0,0 +1,92 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Merges the results of several partitions of a query, whose requests are
+ * all sent at once. When ordered, the partitions are read one after the
+ * other, in the order they were given; otherwise each partition is read as
+ * soon as its response arrives.
+ */
+final class GatherSequenceIterator implements SequenceIterator, AutoCloseable {
+
+    private final List<AsyncSequenceIterator> partitions;
+    private final boolean ordered;
+    // Indexes of the partitions whose response arrived, in arrival order
+    private final BlockingQueue<Integer> arrived = new LinkedBlockingQueue<>();
+    private int read = 0;
+    private SequenceIterator current;
+    private boolean finished = false;
+
+    GatherSequenceIterator(List<? extends Callable<? extends SequenceIterator>> requests, boolean ordered, ExecutorService executor) {
+        super();
+        this.ordered = ordered;
+        this.partitions = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            final Integer index = i;
+            partitions.add(new AsyncSequenceIterator(requests.get(i), executor, ordered ? null : new Runnable() {
+                @Override
+                public void run() {
+                    arrived.add(index);
+                }
+            }));
+        }
+    }
+
+    @Override
+    public Item next() throws XPathException {
+        while (!finished) {
+            if (current == null) {
+                if (read == partitions.size()) {
+                    finished = true;
+                    break;
+                }
+                current = ordered ? partitions.get(read) : partitions.get(nextArrived());
+                read++;
+            }
+            Item item = current.next();
+            if (item != null) {
+                return item;
+            }
+            current = null;
+        }
+        return null;
+    }
+
+    private int nextArrived() throws XPathException {
+        try {
+            return arrived.take();
+        } catch (InterruptedException ex) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted while waiting for MarkLogic results.");
+        }
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        for (AsyncSequenceIterator partition : partitions) {
+            partition.close();
+        }
+    }
+
+    @Override
+    public SequenceIterator getAnother() throws XPathException {
+        return null;
+    }
+
+    @Override
+    public int getProperties() {
+        return 0;
+    }
+}
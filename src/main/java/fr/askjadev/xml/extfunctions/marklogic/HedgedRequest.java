@@ -0,0 +1,107 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.trans.XPathException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a request, and sends it a second time, to another host, if there is
+ * still no response after a while; the first successful response wins. The
+ * other one is closed as soon as it arrives, so that its client goes back to
+ * the pool.
+ */
+final class HedgedRequest {
+
+    private HedgedRequest() {
+        super();
+    }
+
+    /**
+     * The second request, sent once the delay is over.
+     */
+    interface Hedge {
+        /**
+         * @return null if there is no other host to send it to: the first
+         * request is then waited for
+         */
+        Callable<MarkLogicSequenceIterator> request();
+    }
+
+    /**
+     * @param delay how long to wait for the first response, in nanoseconds,
+     *              before sending the request again
+     * @param executor where both requests are sent from; it must not make
+     *                 them wait behind other tasks
+     */
+    static MarkLogicSequenceIterator send(Callable<MarkLogicSequenceIterator> request, Hedge hedge, long delay,
+                                          ExecutorService executor) throws XPathException {
+        CompletionService<MarkLogicSequenceIterator> completion = new ExecutorCompletionService<>(executor);
+        Future<MarkLogicSequenceIterator> first = completion.submit(request);
+        Future<MarkLogicSequenceIterator> second = null;
+        try {
+            Future<MarkLogicSequenceIterator> done = completion.poll(delay, TimeUnit.NANOSECONDS);
+            if (done == null) {
+                Callable<MarkLogicSequenceIterator> duplicate = hedge.request();
+                if (duplicate != null) {
+                    MarkLogicMetrics.getInstance().recordHedge();
+                    second = completion.submit(duplicate);
+                }
+                done = completion.take();
+            }
+            try {
+                MarkLogicSequenceIterator result = done.get();
+                discard(done == first ? second : first);
+                return result;
+            } catch (ExecutionException ex) {
+                if (second == null) {
+                    // Failed before the delay: it has been retried already, if allowed
+                    throw ex;
+                }
+                // The other one may still succeed
+                return completion.take().get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            discard(first);
+            discard(second);
+            throw new XPathException("Interrupted while waiting for MarkLogic.", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof XPathException) {
+                throw (XPathException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new XPathException(cause);
+        }
+    }
+
+    /**
+     * Closes the result of a request nobody waits for anymore, once it
+     * arrives.
+     */
+    private static void discard(final Future<MarkLogicSequenceIterator> loser) {
+        if (loser == null || loser.cancel(false)) {
+            return;
+        }
+        ExtensionExecutors.background().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loser.get().close();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    // Already recorded as an error
+                }
+            }
+        });
+    }
+}
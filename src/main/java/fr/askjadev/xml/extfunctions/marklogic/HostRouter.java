@@ -0,0 +1,357 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.MarkLogicIOException;
+import net.sf.saxon.trans.XPathException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses which host of a cluster a request is sent to, and keeps track of
+ * the state of each host, process-wide.
+ *
+ * A host whose request fails without a response (connection refused, reset,
+ * timeout...) is ejected for <tt>ejectTime</tt> milliseconds, doubled after
+ * each further failure up to <tt>maxEjectTime</tt>. Once that time is over a
+ * single request is sent to it as a health check; the host is back in if it
+ * succeeds, and ejected again otherwise. When every host is ejected, the one
+ * that was ejected first is tried anyway.
+ *
+ * Each host can also have a {@link ConcurrencyLimit}, when
+ * <tt>routing.maxConcurrency</tt> is set: a request then waits until the host
+ * it is routed to has a free slot, hosts with a free slot being chosen first.
+ *
+ * Times can be changed with the system properties
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.routing.ejectTime</tt> (ms, default 10000) and
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.routing.maxEjectTime</tt> (ms, default 300000);
+ * the concurrency limit with <tt>routing.initialConcurrency</tt> (default 16),
+ * <tt>routing.minConcurrency</tt> (default 1), <tt>routing.maxConcurrency</tt>
+ * (default 0, no limit), <tt>routing.latencyTolerance</tt> (default 0,
+ * not to look at response times) and <tt>routing.concurrencyTimeout</tt> (ms to
+ * wait for a slot, default 60000).
+ */
+final class HostRouter {
+
+    static final String PROPERTY_PREFIX = "fr.askjadev.xml.extfunctions.marklogic.routing.";
+
+    private static final HostRouter INSTANCE = new HostRouter(
+            Long.getLong(PROPERTY_PREFIX + "ejectTime", 10000L),
+            Long.getLong(PROPERTY_PREFIX + "maxEjectTime", 300000L),
+            Integer.getInteger(PROPERTY_PREFIX + "initialConcurrency", 16),
+            Integer.getInteger(PROPERTY_PREFIX + "minConcurrency", 1),
+            Integer.getInteger(PROPERTY_PREFIX + "maxConcurrency", 0),
+            Double.parseDouble(System.getProperty(PROPERTY_PREFIX + "latencyTolerance", "0")),
+            Long.getLong(PROPERTY_PREFIX + "concurrencyTimeout", 60000L));
+
+    private final long ejectTime;
+    private final long maxEjectTime;
+    private final int initialConcurrency;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final double latencyTolerance;
+    private final long concurrencyTimeout;
+    // Keyed by server:port, whatever the user or database
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    /**
+     * A router with no concurrency limit.
+     */
+    HostRouter(long ejectTime, long maxEjectTime) {
+        this(ejectTime, maxEjectTime, 0, 0, 0, 0, 0);
+    }
+
+    HostRouter(long ejectTime, long maxEjectTime, int initialConcurrency, int minConcurrency, int maxConcurrency,
+               double latencyTolerance, long concurrencyTimeout) {
+        super();
+        this.ejectTime = ejectTime;
+        this.maxEjectTime = maxEjectTime;
+        this.initialConcurrency = initialConcurrency;
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.latencyTolerance = latencyTolerance;
+        this.concurrencyTimeout = concurrencyTimeout;
+    }
+
+    static HostRouter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Chooses a host. The route must be released once the request is over,
+     * and told whether the host answered.
+     *
+     * @param affinityKey what requests sent to the same host under the
+     * <tt>AFFINITY</tt> routing have in common
+     */
+    Route route(List<ConnectionDescriptor> candidates, MarkLogicConfig.Routing routing, String affinityKey) {
+        int size = candidates.size();
+        List<Integer> order = new ArrayList<>(size);
+        switch (routing) {
+            case LEAST_OUTSTANDING:
+                // Sorting is stable: rotate first, so that ties are spread
+                addFrom(order, (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % size, size);
+                final List<ConnectionDescriptor> hostsToSort = candidates;
+                Collections.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        return Integer.compare(host(hostsToSort.get(a)).outstanding.get(), host(hostsToSort.get(b)).outstanding.get());
+                    }
+                });
+                break;
+            case AFFINITY:
+                addFrom(order, (affinityKey.hashCode() & Integer.MAX_VALUE) % size, size);
+                break;
+            default:
+                addFrom(order, (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % size, size);
+        }
+        long now = System.currentTimeMillis();
+        // Rather a host with a free slot, if there is one
+        for (int index : order) {
+            Host host = host(candidates.get(index));
+            if (host.limit.hasRoom() && host.tryAcquire(now)) {
+                return new Route(this, host, candidates.get(index));
+            }
+        }
+        for (int index : order) {
+            Host host = host(candidates.get(index));
+            if (host.tryAcquire(now)) {
+                return new Route(this, host, candidates.get(index));
+            }
+        }
+        // Every host is ejected: try the one that should be back first
+        int first = order.get(0);
+        for (int index : order) {
+            if (host(candidates.get(index)).getEjectedUntil() < host(candidates.get(first)).getEjectedUntil()) {
+                first = index;
+            }
+        }
+        return new Route(this, host(candidates.get(first)), candidates.get(first));
+    }
+
+    /**
+     * The hosts requests are currently sent to, but <tt>excluded</tt>: where
+     * to send a duplicate of a request that is slow on <tt>excluded</tt>.
+     */
+    List<ConnectionDescriptor> others(List<ConnectionDescriptor> candidates, ConnectionDescriptor excluded) {
+        List<ConnectionDescriptor> others = new ArrayList<>(candidates.size());
+        for (ConnectionDescriptor candidate : candidates) {
+            if (!key(candidate).equals(key(excluded)) && isAvailable(candidate)) {
+                others.add(candidate);
+            }
+        }
+        return others;
+    }
+
+    private static void addFrom(List<Integer> order, int start, int size) {
+        for (int i = 0; i < size; i++) {
+            order.add((start + i) % size);
+        }
+    }
+
+    /**
+     * Whether a request failed without an answer from its host: connection
+     * refused, reset, timeout...
+     */
+    static boolean unanswered(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MarkLogicIOException || cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * What host state is kept by: <tt>server:port</tt>.
+     */
+    static String key(ConnectionDescriptor descriptor) {
+        return descriptor.getServer() + ":" + descriptor.getPort();
+    }
+
+    private Host host(ConnectionDescriptor descriptor) {
+        String key = key(descriptor);
+        Host host = hosts.get(key);
+        if (host == null) {
+            Host created = new Host(new ConcurrencyLimit(initialConcurrency, minConcurrency, maxConcurrency, latencyTolerance));
+            host = hosts.putIfAbsent(key, created);
+            if (host == null) {
+                host = created;
+            }
+        }
+        return host;
+    }
+
+    /**
+     * Whether requests are currently sent to the host.
+     */
+    boolean isAvailable(ConnectionDescriptor descriptor) {
+        return host(descriptor).getEjectedUntil() == 0;
+    }
+
+    /**
+     * Number of requests sent to the host and not released yet.
+     */
+    int getOutstanding(ConnectionDescriptor descriptor) {
+        return host(descriptor).outstanding.get();
+    }
+
+    /**
+     * @param key the {@link #key} of the host
+     */
+    int getOutstanding(String key) {
+        Host host = hosts.get(key);
+        return host == null ? 0 : host.outstanding.get();
+    }
+
+    /**
+     * @param key the {@link #key} of the host
+     * @return its current concurrency limit, 0 if there is none
+     */
+    int getConcurrencyLimit(String key) {
+        Host host = hosts.get(key);
+        return host == null ? 0 : host.limit.getLimit();
+    }
+
+    void clear() {
+        hosts.clear();
+    }
+
+    private static final class Host {
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final ConcurrencyLimit limit;
+        private int failures;
+        // 0 while the host is in
+        private long ejectedUntil;
+        private boolean probing;
+
+        private Host(ConcurrencyLimit limit) {
+            this.limit = limit;
+        }
+
+        private synchronized boolean tryAcquire(long now) {
+            if (ejectedUntil == 0) {
+                return true;
+            }
+            if (now < ejectedUntil || probing) {
+                return false;
+            }
+            // This request is the health check
+            probing = true;
+            return true;
+        }
+
+        private synchronized long getEjectedUntil() {
+            return ejectedUntil;
+        }
+
+        private synchronized void succeeded() {
+            failures = 0;
+            ejectedUntil = 0;
+            probing = false;
+        }
+
+        private synchronized void failed(long ejectTime, long maxEjectTime) {
+            failures++;
+            probing = false;
+            long time = ejectTime << Math.min(failures - 1, 16);
+            ejectedUntil = System.currentTimeMillis() + Math.min(time, maxEjectTime);
+        }
+
+        private synchronized void unresolved() {
+            // The request ended before reaching the host: let another one check it
+            probing = false;
+        }
+    }
+
+    /**
+     * A request sent to a host. Running it releases it.
+     */
+    static final class Route implements Runnable {
+        private final HostRouter router;
+        private final Host host;
+        private final ConnectionDescriptor descriptor;
+        private final AtomicBoolean resolved = new AtomicBoolean(false);
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private final AtomicBoolean slotReleased = new AtomicBoolean(false);
+        // When the request got a slot, 0 until then
+        private volatile long admittedAt;
+
+        private Route(HostRouter router, Host host, ConnectionDescriptor descriptor) {
+            this.router = router;
+            this.host = host;
+            this.descriptor = descriptor;
+            host.outstanding.incrementAndGet();
+        }
+
+        ConnectionDescriptor getHost() {
+            return descriptor;
+        }
+
+        /**
+         * Waits until the host has a free slot for the request. The slot is
+         * freed once the host answers, or once the route is released.
+         */
+        void admit() throws XPathException {
+            host.limit.acquire(router.concurrencyTimeout);
+            admittedAt = System.nanoTime();
+        }
+
+        /**
+         * The host answered, even with an error.
+         */
+        void succeeded() {
+            if (resolved.compareAndSet(false, true)) {
+                host.succeeded();
+            }
+            releaseSlot(true, false);
+        }
+
+        /**
+         * The host answered that it is overloaded or unavailable (502, 503,
+         * 504): it is not ejected, but it gets fewer requests.
+         */
+        void overloaded() {
+            if (resolved.compareAndSet(false, true)) {
+                host.succeeded();
+            }
+            releaseSlot(true, true);
+        }
+
+        /**
+         * The host did not answer.
+         */
+        void failed() {
+            if (resolved.compareAndSet(false, true)) {
+                host.failed(router.ejectTime, router.maxEjectTime);
+            }
+            releaseSlot(true, true);
+        }
+
+        private void releaseSlot(boolean answered, boolean overloaded) {
+            long admitted = admittedAt;
+            if (admitted != 0 && slotReleased.compareAndSet(false, true)) {
+                host.limit.release(answered ? System.nanoTime() - admitted : -1, overloaded);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            host.outstanding.decrementAndGet();
+            releaseSlot(false, false);
+            if (resolved.compareAndSet(false, true)) {
+                host.unresolved();
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.ma.arrays.SimpleArrayItem;
+import net.sf.saxon.ma.map.HashTrieMap;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.BooleanValue;
+import net.sf.saxon.value.DoubleValue;
+import net.sf.saxon.value.EmptySequence;
+import net.sf.saxon.value.StringValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads JSON results with a streaming parser, straight into XPath 3.1 maps
+ * and arrays, as <tt>fn:parse-json</tt> would: numbers are
+ * <tt>xs:double</tt>s and <tt>null</tt> is the empty sequence.
+ */
+final class JsonResults {
+
+    /**
+     * Returns the results of the <tt>$query</tt> element, written by
+     * {@link QueryBatch#queryVariable}, as a single JSON array. XML nodes
+     * are serialized as strings.
+     */
+    static final String COMPACT_WRAPPER = "xquery version \"1.0-ml\";\n"
+            + "declare variable $query external;\n"
+            + QueryBatch.VARIABLES_FUNCTION
+            + "let $query := ($query/descendant-or-self::query)[1]\n"
+            + "return xdmp:to-json(json:to-array(\n"
+            + "  if ($query/@module) then xdmp:invoke(string($query/text), local:variables($query))\n"
+            + "  else xdmp:eval(string($query/text), local:variables($query))))";
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final XPathContext context;
+
+    JsonResults(Configuration config) {
+        super();
+        this.context = config.getConversionContext();
+    }
+
+    /**
+     * Reads one JSON value.
+     *
+     * @return the item, or <tt>null</tt> for a JSON <tt>null</tt>: it stands
+     * for the empty sequence, so callers must drop it rather than append it
+     * to the results
+     */
+    Item parse(InputStream in) throws XPathException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                throw new XPathException("Empty JSON result.");
+            }
+            Sequence value = read(parser, token);
+            return value instanceof Item ? (Item) value : null;
+        } catch (IOException ex) {
+            throw new XPathException("Malformed JSON result: " + ex.getMessage());
+        }
+    }
+
+    private Sequence read(JsonParser parser, JsonToken token) throws IOException, XPathException {
+        switch (token) {
+            case START_OBJECT:
+                HashTrieMap map = new HashTrieMap(context);
+                for (JsonToken next = parser.nextToken(); next != JsonToken.END_OBJECT; next = parser.nextToken()) {
+                    String name = parser.getCurrentName();
+                    map.initialPut(new StringValue(name), read(parser, parser.nextToken()));
+                }
+                return map;
+            case START_ARRAY:
+                List<Sequence> members = new ArrayList<>();
+                for (JsonToken next = parser.nextToken(); next != JsonToken.END_ARRAY; next = parser.nextToken()) {
+                    members.add(read(parser, next));
+                }
+                return new SimpleArrayItem(members);
+            case VALUE_STRING:
+                return new StringValue(parser.getText());
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return new DoubleValue(parser.getDoubleValue());
+            case VALUE_TRUE:
+                return BooleanValue.TRUE;
+            case VALUE_FALSE:
+                return BooleanValue.FALSE;
+            case VALUE_NULL:
+                return EmptySequence.getInstance();
+            default:
+                throw new XPathException("Unexpected JSON token: " + token + ".");
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, in log-linear buckets of microseconds:
+ * each power of two is split into 8 buckets, so percentiles are within 12.5%.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    // Up to 2^40 µs, about 12 days
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos / 1000));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        for (long max = maxNanos.get(); nanos > max && !maxNanos.compareAndSet(max, nanos); max = maxNanos.get()) {
+            // Retry until the maximum is up to date
+        }
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        int sub = (int) Math.min((micros >> (exponent - SUB_BITS)) - SUB_BUCKETS, SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The upper bound of a bucket, in microseconds.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS);
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    double getMeanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+    }
+
+    double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    /**
+     * The duration under which <tt>percentile</tt>% of the recorded ones are,
+     * or 0 if there is none.
+     */
+    double getPercentileMillis(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i) / 1e3, getMaxMillis());
+            }
+        }
+        return getMaxMillis();
+    }
+}
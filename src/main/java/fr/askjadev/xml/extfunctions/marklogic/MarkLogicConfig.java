@@ -0,0 +1,398 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.trans.XPathException;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything read from the extension function arguments but the query: the
+ * connection to each host, plus the options that can only be given as children of the
+ * <tt>&lt;marklogic&gt;</tt> element. Options are set while the arguments are
+ * read, and never changed afterwards.
+ */
+final class MarkLogicConfig {
+
+    enum CacheMode {
+        BYPASS, USE, REFRESH;
+
+        static CacheMode parse(String value) throws XPathException {
+            switch (value.trim()) {
+                case "true":
+                    return USE;
+                case "false":
+                    return BYPASS;
+                case "refresh":
+                    return REFRESH;
+                default:
+                    throw new XPathException("'cache' must be 'true', 'false' or 'refresh', got '" + value + "'.");
+            }
+        }
+    }
+
+    enum Routing {
+        ROUND_ROBIN, LEAST_OUTSTANDING, AFFINITY;
+
+        static Routing parse(String value) throws XPathException {
+            switch (value.trim()) {
+                case "round-robin":
+                    return ROUND_ROBIN;
+                case "least-outstanding":
+                    return LEAST_OUTSTANDING;
+                case "affinity":
+                    return AFFINITY;
+                default:
+                    throw new XPathException("'routing' must be 'round-robin', 'least-outstanding' or 'affinity', got '" + value + "'.");
+            }
+        }
+    }
+
+    enum Scatter {
+        NONE, ORDERED, UNORDERED;
+
+        static Scatter parse(String value) throws XPathException {
+            switch (value.trim()) {
+                case "false":
+                    return NONE;
+                case "ordered":
+                    return ORDERED;
+                case "unordered":
+                    return UNORDERED;
+                default:
+                    throw new XPathException("'scatter' must be 'false', 'ordered' or 'unordered', got '" + value + "'.");
+            }
+        }
+    }
+
+    enum JsonMode {
+        STRING, MAP;
+
+        static JsonMode parse(String value) throws XPathException {
+            switch (value.trim()) {
+                case "string":
+                    return STRING;
+                case "map":
+                    return MAP;
+                default:
+                    throw new XPathException("'json' must be 'string' or 'map', got '" + value + "'.");
+            }
+        }
+    }
+
+    enum WriteFlush {
+        END, CALL;
+
+        static WriteFlush parse(String value) throws XPathException {
+            switch (value.trim()) {
+                case "end":
+                    return END;
+                case "call":
+                    return CALL;
+                default:
+                    throw new XPathException("'write-flush' must be 'end' or 'call', got '" + value + "'.");
+            }
+        }
+    }
+
+    private final List<ConnectionDescriptor> hosts;
+    private Routing routing = Routing.ROUND_ROBIN;
+    private int prefetch;
+    private boolean replay;
+    private boolean async;
+    private Scatter scatter = Scatter.NONE;
+    private int pageSize;
+    private CacheMode cache = CacheMode.BYPASS;
+    private long cacheTtl = 300000L;
+    private JsonMode json = JsonMode.STRING;
+    private boolean compact;
+    private boolean passthrough;
+    private int retries;
+    private long retryDelay = 100L;
+    private int hedge;
+    private int writeBatchSize = 100;
+    private int writeThreads = 4;
+    private WriteFlush writeFlush = WriteFlush.END;
+    private List<ExternalVariable> variables = Collections.emptyList();
+
+    MarkLogicConfig(ConnectionDescriptor connection) {
+        this(Collections.singletonList(connection));
+    }
+
+    MarkLogicConfig(List<ConnectionDescriptor> hosts) {
+        super();
+        this.hosts = hosts;
+    }
+
+    /**
+     * The hosts requests are spread across; they only differ by their server
+     * and port.
+     */
+    List<ConnectionDescriptor> getHosts() {
+        return hosts;
+    }
+
+    /**
+     * How a host is chosen for each request (default: <tt>ROUND_ROBIN</tt>).
+     * <tt>AFFINITY</tt> sends the same query or module to the same host.
+     */
+    Routing getRouting() {
+        return routing;
+    }
+
+    void setRouting(Routing routing) {
+        this.routing = routing;
+    }
+
+    /**
+     * Number of results read ahead by a background thread, 0 to read them on
+     * demand (the default).
+     */
+    int getPrefetch() {
+        return prefetch;
+    }
+
+    void setPrefetch(int prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * Whether the results are kept, so that the sequence can be read several
+     * times without running the query again (default: false).
+     */
+    boolean isReplay() {
+        return replay;
+    }
+
+    void setReplay(boolean replay) {
+        this.replay = replay;
+    }
+
+    /**
+     * Whether the request is sent on another thread as soon as the call is
+     * evaluated, the calling thread only waiting for the response when the
+     * first result is read (default: false).
+     */
+    boolean isAsync() {
+        return async;
+    }
+
+    void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * Whether the query is run once per forest, the partitions being sent at
+     * once and their results merged, either forest after forest
+     * (<tt>ORDERED</tt>) or as they arrive (default: <tt>NONE</tt>).
+     */
+    Scatter getScatter() {
+        return scatter;
+    }
+
+    void setScatter(Scatter scatter) {
+        this.scatter = scatter;
+    }
+
+    /**
+     * Number of results fetched per request, the query being sent again for
+     * each page as the results are read; 0 to fetch them all at once (the
+     * default).
+     */
+    int getPageSize() {
+        return pageSize;
+    }
+
+    void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Whether the result is looked up in, and stored into, the
+     * {@link ResultCache}. <tt>REFRESH</tt> runs the query and replaces the
+     * cached result (default: <tt>BYPASS</tt>).
+     */
+    CacheMode getCache() {
+        return cache;
+    }
+
+    void setCache(CacheMode cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * How long a cached result is kept, in milliseconds (default: 5 minutes).
+     */
+    long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    void setCacheTtl(long cacheTtl) {
+        this.cacheTtl = cacheTtl;
+    }
+
+    /**
+     * How JSON results are returned: serialized as <tt>xs:string</tt>s (the
+     * default), or as maps and arrays (<tt>MAP</tt>).
+     */
+    JsonMode getJson() {
+        return json;
+    }
+
+    void setJson(JsonMode json) {
+        this.json = json;
+    }
+
+    /**
+     * Whether the results are sent as a single JSON array, rather than one
+     * multipart part each (default: false).
+     */
+    boolean isCompact() {
+        return compact;
+    }
+
+    void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Whether the results are written to the current output, XML ones being
+     * parsed straight into it, the call itself returning the empty sequence
+     * (default: false).
+     */
+    boolean isPassthrough() {
+        return passthrough;
+    }
+
+    void setPassthrough(boolean passthrough) {
+        this.passthrough = passthrough;
+    }
+
+    /**
+     * Number of times a request is sent again after a transient failure: a
+     * 502, 503 or 504 status, or no answer at all. Only for queries without
+     * side effects (default: 0).
+     */
+    int getRetries() {
+        return retries;
+    }
+
+    void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * The base of the exponential backoff between retries, in milliseconds
+     * (default: 100).
+     */
+    long getRetryDelay() {
+        return retryDelay;
+    }
+
+    void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * The latency percentile of the call after which the request is sent a
+     * second time, the first response being used; 0 not to hedge requests
+     * (the default). Only for queries without side effects.
+     */
+    int getHedge() {
+        return hedge;
+    }
+
+    void setHedge(int hedge) {
+        this.hedge = hedge;
+    }
+
+    /**
+     * Number of documents sent per request by <tt>marklogic-write</tt>
+     * (default: 100).
+     */
+    int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    void setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    /**
+     * Number of threads sending the batches of <tt>marklogic-write</tt>
+     * (default: 4).
+     */
+    int getWriteThreads() {
+        return writeThreads;
+    }
+
+    void setWriteThreads(int writeThreads) {
+        this.writeThreads = writeThreads;
+    }
+
+    /**
+     * When the documents of <tt>marklogic-write</tt> are sent: as batches
+     * fill up, the rest by <tt>marklogic-write-flush</tt> or when the JVM
+     * exits (<tt>END</tt>, the default), or before each call returns
+     * (<tt>CALL</tt>).
+     */
+    WriteFlush getWriteFlush() {
+        return writeFlush;
+    }
+
+    void setWriteFlush(WriteFlush writeFlush) {
+        this.writeFlush = writeFlush;
+    }
+
+    /**
+     * The external variables bound to the query or module.
+     */
+    List<ExternalVariable> getVariables() {
+        return variables;
+    }
+
+    void setVariables(List<ExternalVariable> variables) {
+        this.variables = variables;
+    }
+
+    /**
+     * Parses the value of a boolean option.
+     */
+    static boolean parseBoolean(String option, String value) throws XPathException {
+        switch (value.trim()) {
+            case "true":
+            case "1":
+                return true;
+            case "false":
+            case "0":
+                return false;
+            default:
+                throw new XPathException("'" + option + "' must be a boolean, got '" + value + "'.");
+        }
+    }
+
+    /**
+     * Parses the value of a non-negative integer option.
+     */
+    static int parseCount(String option, String value) throws XPathException {
+        try {
+            int count = Integer.parseInt(value.trim());
+            if (count >= 0) {
+                return count;
+            }
+        } catch (NumberFormatException ex) {
+            // Reported below
+        }
+        throw new XPathException("'" + option + "' must be a non-negative integer, got '" + value + "'.");
+    }
+
+    /**
+     * Parses the value of a positive integer option.
+     */
+    static int parsePositive(String option, String value) throws XPathException {
+        int count = parseCount(option, value);
+        if (count == 0) {
+            throw new XPathException("'" + option + "' must be a positive integer, got '" + value + "'.");
+        }
+        return count;
+    }
+}
@@ -0,0 +1,92 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Publishes the metrics of the extension functions to a Micrometer registry:
+ * <tt>new MarkLogicMeterBinder().bindTo(registry)</tt>. Calls are tagged by
+ * <tt>function</tt> and <tt>host</tt>.
+ *
+ * Micrometer is not a dependency of the extension: it must be on the class
+ * path of the application using this class.
+ */
+public final class MarkLogicMeterBinder implements MeterBinder {
+
+    static final String PREFIX = "marklogic.extension.";
+
+    @Override
+    public void bindTo(final MeterRegistry registry) {
+        MarkLogicMetrics metrics = MarkLogicMetrics.getInstance();
+        registry.gauge(PREFIX + "pool.clients", Tags.of("state", "pooled"), metrics, new ToDoubleFunction<MarkLogicMetrics>() {
+            @Override
+            public double applyAsDouble(MarkLogicMetrics value) {
+                return value.getPooledClients();
+            }
+        });
+        registry.gauge(PREFIX + "pool.clients", Tags.of("state", "busy"), metrics, new ToDoubleFunction<MarkLogicMetrics>() {
+            @Override
+            public double applyAsDouble(MarkLogicMetrics value) {
+                return value.getBusyClients();
+            }
+        });
+        registry.gauge(PREFIX + "pool.clients", Tags.of("state", "private"), metrics, new ToDoubleFunction<MarkLogicMetrics>() {
+            @Override
+            public double applyAsDouble(MarkLogicMetrics value) {
+                return value.getPrivateClients();
+            }
+        });
+        registry.more().counter(PREFIX + "cache.lookups", Tags.of("result", "hit"), metrics, new ToDoubleFunction<MarkLogicMetrics>() {
+            @Override
+            public double applyAsDouble(MarkLogicMetrics value) {
+                return value.getCacheHits();
+            }
+        });
+        registry.more().counter(PREFIX + "cache.lookups", Tags.of("result", "miss"), metrics, new ToDoubleFunction<MarkLogicMetrics>() {
+            @Override
+            public double applyAsDouble(MarkLogicMetrics value) {
+                return value.getCacheMisses();
+            }
+        });
+        registry.more().counter(PREFIX + "retries", Tags.empty(), metrics, new ToDoubleFunction<MarkLogicMetrics>() {
+            @Override
+            public double applyAsDouble(MarkLogicMetrics value) {
+                return value.getRetries();
+            }
+        });
+        registry.more().counter(PREFIX + "hedged.requests", Tags.empty(), metrics, new ToDoubleFunction<MarkLogicMetrics>() {
+            @Override
+            public double applyAsDouble(MarkLogicMetrics value) {
+                return value.getHedgedRequests();
+            }
+        });
+        metrics.addListener(new MarkLogicMetrics.Listener() {
+            @Override
+            public void recorded(CallStatistics statistics, long endNanos) {
+                if (statistics.function == null) {
+                    return;
+                }
+                Tags tags = Tags.of("function", statistics.function, "host", statistics.host);
+                registry.timer(PREFIX + "time.to.first.byte", tags)
+                        .record(statistics.responseNanos - statistics.startNanos, TimeUnit.NANOSECONDS);
+                registry.timer(PREFIX + "total.time", tags).record(endNanos - statistics.startNanos, TimeUnit.NANOSECONDS);
+                registry.timer(PREFIX + "parse.time", tags).record(statistics.parseNanos, TimeUnit.NANOSECONDS);
+                registry.summary(PREFIX + "items", tags).record(statistics.itemsConsumed);
+                registry.summary(PREFIX + "bytes", tags).record(statistics.bytesConsumed);
+                registry.counter(PREFIX + "items.discarded", tags).increment(statistics.itemsDiscarded);
+                if (statistics.closedEarly) {
+                    registry.counter(PREFIX + "early.closes", tags).increment();
+                }
+            }
+
+            @Override
+            public void recordedError(String function, String host) {
+                registry.counter(PREFIX + "errors", Tags.of("function", function, "host", host)).increment();
+            }
+        });
+    }
+}
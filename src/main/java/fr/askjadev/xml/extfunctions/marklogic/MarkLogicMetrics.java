@@ -0,0 +1,269 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide counters about the calls to MarkLogic, in total and by
+ * function and host ({@link CallMetrics}).
+ *
+ * They are registered as JMX MBeans in the platform MBean server, unless the
+ * system property <tt>fr.askjadev.xml.extfunctions.marklogic.metrics.jmx</tt>
+ * is <tt>false</tt>. {@link MarkLogicMeterBinder} publishes them to Micrometer.
+ */
+final class MarkLogicMetrics implements MarkLogicMetricsMBean {
+
+    static final String PROPERTY_PREFIX = "fr.askjadev.xml.extfunctions.marklogic.metrics.";
+    static final String JMX_DOMAIN = "fr.askjadev.xml.extfunctions.marklogic";
+
+    private static final MarkLogicMetrics INSTANCE = new MarkLogicMetrics(
+            !"false".equals(System.getProperty(PROPERTY_PREFIX + "jmx")));
+
+    /**
+     * Told about every call, once its results are closed.
+     */
+    interface Listener {
+        void recorded(CallStatistics statistics, long endNanos);
+
+        void recordedError(String function, String host);
+    }
+
+    private final boolean jmx;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong itemsConsumed = new AtomicLong();
+    private final AtomicLong bytesConsumed = new AtomicLong();
+    private final AtomicLong itemsDiscarded = new AtomicLong();
+    private final AtomicLong earlyCloses = new AtomicLong();
+    private final AtomicLong abandonedIterators = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong hedgedRequests = new AtomicLong();
+    // Keyed by function and host
+    private final ConcurrentMap<List<String>, CallMetrics> callMetrics = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    MarkLogicMetrics(boolean jmx) {
+        super();
+        this.jmx = jmx;
+        register(JMX_DOMAIN + ":type=Metrics", this);
+    }
+
+    static MarkLogicMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    void record(CallStatistics statistics) {
+        long endNanos = System.nanoTime();
+        calls.incrementAndGet();
+        itemsConsumed.addAndGet(statistics.itemsConsumed);
+        bytesConsumed.addAndGet(statistics.bytesConsumed);
+        itemsDiscarded.addAndGet(statistics.itemsDiscarded);
+        if (statistics.closedEarly) {
+            earlyCloses.incrementAndGet();
+        }
+        if (statistics.abandoned) {
+            abandonedIterators.incrementAndGet();
+        }
+        if (statistics.function != null) {
+            getCallMetrics(statistics.function, statistics.host).record(statistics, endNanos);
+        }
+        for (Listener listener : listeners) {
+            listener.recorded(statistics, endNanos);
+        }
+    }
+
+    /**
+     * A request failed, either answered with an error or not answered.
+     */
+    void recordError(String function, String host) {
+        errors.incrementAndGet();
+        getCallMetrics(function, host).recordError();
+        for (Listener listener : listeners) {
+            listener.recordedError(function, host);
+        }
+    }
+
+    void recordCacheLookup(boolean hit) {
+        if (hit) {
+            cacheHits.incrementAndGet();
+        } else {
+            cacheMisses.incrementAndGet();
+        }
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    void recordHedge() {
+        hedgedRequests.incrementAndGet();
+    }
+
+    CallMetrics getCallMetrics(String function, String host) {
+        List<String> key = Arrays.asList(function, host);
+        CallMetrics metrics = callMetrics.get(key);
+        if (metrics == null) {
+            CallMetrics created = new CallMetrics(function, host);
+            metrics = callMetrics.putIfAbsent(key, created);
+            if (metrics == null) {
+                metrics = created;
+                register(JMX_DOMAIN + ":type=CallMetrics,function=" + ObjectName.quote(function)
+                        + ",host=" + ObjectName.quote(host), created);
+            }
+        }
+        return metrics;
+    }
+
+    Collection<CallMetrics> getAllCallMetrics() {
+        return Collections.unmodifiableCollection(new ArrayList<>(callMetrics.values()));
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Registers an object through its MBean interface, for a class not named
+     * after it as a standard MBean should be.
+     */
+    <T> void register(String name, T mbean, Class<T> mbeanInterface) {
+        try {
+            register(name, new StandardMBean(mbean, mbeanInterface));
+        } catch (NotCompliantMBeanException ex) {
+            Logger.getLogger(MarkLogicMetrics.class.getName()).log(Level.FINE, "Could not register " + name, ex);
+        }
+    }
+
+    /**
+     * Registers an MBean, unless JMX is disabled.
+     */
+    void register(String name, Object mbean) {
+        if (!jmx) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(mbean, objectName);
+            }
+        } catch (JMException | SecurityException ex) {
+            // Another class loader may have registered its own copy: metrics are still counted
+            Logger.getLogger(MarkLogicMetrics.class.getName()).log(Level.FINE, "Could not register " + name, ex);
+        }
+    }
+
+    /**
+     * Unregisters an MBean that is no longer updated.
+     */
+    void unregister(String name) {
+        if (!jmx) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException | SecurityException ex) {
+            Logger.getLogger(MarkLogicMetrics.class.getName()).log(Level.FINE, "Could not unregister " + name, ex);
+        }
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public long getItemsConsumed() {
+        return itemsConsumed.get();
+    }
+
+    @Override
+    public long getBytesConsumed() {
+        return bytesConsumed.get();
+    }
+
+    @Override
+    public long getItemsDiscarded() {
+        return itemsDiscarded.get();
+    }
+
+    @Override
+    public long getEarlyCloses() {
+        return earlyCloses.get();
+    }
+
+    @Override
+    public long getAbandonedIterators() {
+        return abandonedIterators.get();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    @Override
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    @Override
+    public int getPooledClients() {
+        return DatabaseClientPool.getInstance().size();
+    }
+
+    @Override
+    public int getBusyClients() {
+        return DatabaseClientPool.getInstance().getBusyClients();
+    }
+
+    @Override
+    public int getPrivateClients() {
+        return DatabaseClientPool.getInstance().getPrivateClients();
+    }
+
+    @Override
+    public int getMaxClients() {
+        return DatabaseClientPool.getInstance().getMaxClients();
+    }
+}
@@ -0,0 +1,71 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+/**
+ * JMX view of every call made by the extension functions, registered as
+ * <tt>fr.askjadev.xml.extfunctions.marklogic:type=Metrics</tt>. The calls of
+ * each function to each host are registered as <tt>type=CallMetrics</tt>,
+ * see {@link CallMetricsMBean}.
+ */
+public interface MarkLogicMetricsMBean {
+
+    long getCalls();
+
+    long getErrors();
+
+    /**
+     * Results handed to Saxon.
+     */
+    long getItemsConsumed();
+
+    /**
+     * Bytes of the results handed to Saxon.
+     */
+    long getBytesConsumed();
+
+    /**
+     * Results received but never read, because their sequence was closed first.
+     */
+    long getItemsDiscarded();
+
+    /**
+     * Result sequences closed before their end.
+     */
+    long getEarlyCloses();
+
+    /**
+     * Result sequences garbage collected without being closed.
+     */
+    long getAbandonedIterators();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    /**
+     * Requests sent again after a transient failure.
+     */
+    long getRetries();
+
+    /**
+     * Requests sent a second time because the first one was slow.
+     */
+    long getHedgedRequests();
+
+    /**
+     * Clients kept by the pool, busy or idle.
+     */
+    int getPooledClients();
+
+    /**
+     * Pooled clients currently used by a call.
+     */
+    int getBusyClients();
+
+    /**
+     * Clients created because the pool was full of busy clients, and not
+     * released yet.
+     */
+    int getPrivateClients();
+
+    int getMaxClients();
+}
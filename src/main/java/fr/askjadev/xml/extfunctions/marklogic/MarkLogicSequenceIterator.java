@@ -1,68 +1,124 @@
 package fr.askjadev.xml.extfunctions.marklogic;
 
-import com.marklogic.client.DatabaseClient;
+import com.marklogic.client.eval.EvalResult;
 import com.marklogic.client.eval.EvalResultIterator;
-import com.marklogic.client.io.BytesHandle;
+import net.sf.saxon.event.SequenceReceiver;
+import net.sf.saxon.expr.parser.ExplicitLocation;
+import net.sf.saxon.ma.arrays.ArrayItem;
 import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.Sequence;
 import net.sf.saxon.om.SequenceIterator;
-import net.sf.saxon.s9api.DocumentBuilder;
-import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.trans.XPathException;
 
-import javax.xml.transform.stream.StreamSource;
-import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 class MarkLogicSequenceIterator implements SequenceIterator, AutoCloseable {
 
     private final EvalResultIterator result;
-    private final DocumentBuilder builder;
-    private final DatabaseClient session;
-    private Integer resultCount;
-    private boolean closed = false;
+    private final EvalResultConverter converter;
+    private final Resources resources;
+    private final AbandonedIteratorReaper.Registration registration;
+    // The members of a compact result not read yet
+    private Iterator<Item> members;
 
-    public MarkLogicSequenceIterator(EvalResultIterator result, DocumentBuilder builder, DatabaseClient session) {
+    public MarkLogicSequenceIterator(EvalResultIterator result, EvalResultConverter converter, DatabaseClientPool.Lease lease) {
+        this(result, converter, lease, new CallStatistics());
+    }
+
+    /**
+     * @param statistics where the reading of the results is recorded
+     */
+    MarkLogicSequenceIterator(EvalResultIterator result, EvalResultConverter converter, DatabaseClientPool.Lease lease,
+                              CallStatistics statistics) {
         super();
         this.result = result;
-        this.builder = builder;
-        this.session = session;
-        this.resultCount = 0;
+        this.converter = converter;
+        this.resources = new Resources(result, lease, statistics);
+        this.registration = AbandonedIteratorReaper.register(this, resources);
     }
 
     @Override
     public Item next() throws XPathException {
+        if (resources.isClosed()) {
+            return null;
+        }
+        if (members != null && members.hasNext()) {
+            return members.next();
+        }
+        while (result.hasNext()) {
+            CallStatistics statistics = resources.statistics;
+            statistics.itemsConsumed++;
+            long start = System.nanoTime();
+            Item item = converter.convert(result.next(), statistics);
+            statistics.parseNanos += System.nanoTime() - start;
+            if (item instanceof ArrayItem && converter.isCompact()) {
+                members = members((ArrayItem) item);
+                if (members.hasNext()) {
+                    return members.next();
+                }
+            } else if (item != null) {
+                return item;
+            }
+        }
+        close();
+        return null;
+    }
+
+    /**
+     * Writes the remaining results to <tt>out</tt>, XML ones without building
+     * any tree, and closes the iterator.
+     */
+    void send(SequenceReceiver out) throws XPathException {
         try {
-            if (result.hasNext()) {
-                resultCount++;
-                StreamSource source = new StreamSource(new ByteArrayInputStream(result.next().get(new BytesHandle()).toBuffer()));
-                XdmNode node = builder.build(source);
-                // Logger.getLogger(MarkLogicQuery.class.getName()).log(Level.INFO, node.toString());
-                return node.getUnderlyingNode();
-            } else {
-                close();
-                return null;
+            while (!resources.isClosed() && result.hasNext()) {
+                CallStatistics statistics = resources.statistics;
+                statistics.itemsConsumed++;
+                long start = System.nanoTime();
+                EvalResult next = result.next();
+                if (converter.isCompact()) {
+                    Item item = converter.convert(next, statistics);
+                    Iterator<Item> items = item instanceof ArrayItem ? members((ArrayItem) item) : null;
+                    while (items != null && items.hasNext()) {
+                        out.append(items.next(), ExplicitLocation.UNKNOWN_LOCATION, NodeInfo.ALL_NAMESPACES);
+                    }
+                } else {
+                    converter.send(next, out, statistics);
+                }
+                statistics.parseNanos += System.nanoTime() - start;
             }
-        } catch (SaxonApiException ex) {
-            throw new XPathException(ex);
+        } finally {
+            close();
         }
     }
 
+    private static Iterator<Item> members(ArrayItem array) throws XPathException {
+        List<Item> items = new ArrayList<>(array.size());
+        for (Sequence member : array) {
+            SequenceIterator it = member.iterate();
+            for (Item item = it.next(); item != null; item = it.next()) {
+                items.add(item);
+            }
+        }
+        return items.iterator();
+    }
+
     @Override
     public void close() {
-        // Logger.getLogger(MarkLogicQuery.class.getName()).log(Level.INFO, "Total result(s): {0}", resultCount);
-        if (closed) {
-            return;
-        }
-        try {
-            // Logger.getLogger(MarkLogicQuery.class.getName()).log(Level.INFO, "Closing sequence iterator.");
-            closed = true;
-            result.close();
-            session.release();
-        } catch (Exception ex) {
-            Logger.getLogger(MarkLogicQueryInvoke.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        registration.cancel();
+        resources.close(false);
+    }
+
+    /**
+     * What has been read so far. Complete once the iterator is closed.
+     */
+    CallStatistics getStatistics() {
+        return resources.statistics;
     }
 
     @Override
@@ -74,4 +130,52 @@ class MarkLogicSequenceIterator implements SequenceIterator, AutoCloseable {
     public int getProperties() {
         return 0;
     }
+
+    /**
+     * What must be released when the iterator is closed. Kept apart from the
+     * iterator so that it can be released once the iterator is unreachable.
+     */
+    private static final class Resources implements Runnable {
+        private final EvalResultIterator result;
+        private final DatabaseClientPool.Lease lease;
+        private final CallStatistics statistics;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private Resources(EvalResultIterator result, DatabaseClientPool.Lease lease, CallStatistics statistics) {
+            this.result = result;
+            this.lease = lease;
+            this.statistics = statistics;
+        }
+
+        @Override
+        public void run() {
+            // The iterator was garbage collected without being closed
+            close(true);
+        }
+
+        private boolean isClosed() {
+            return closed.get();
+        }
+
+        private void close(boolean abandoned) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                // The response is already buffered: skipping the remaining parts does not read them
+                while (result.hasNext()) {
+                    result.next();
+                    statistics.itemsDiscarded++;
+                }
+                statistics.closedEarly = statistics.itemsDiscarded > 0;
+                statistics.abandoned = abandoned;
+                result.close();
+            } catch (Exception ex) {
+                Logger.getLogger(MarkLogicQueryInvoke.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                lease.release();
+                MarkLogicMetrics.getInstance().record(statistics);
+            }
+        }
+    }
 }
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.value.SequenceType;
+
+/**
+ * This class is an extension function for Saxon, which sends the documents
+ * queued by {@link MarkLogicWrite} with the same config, and waits until they
+ * are written. It is declared like {@link MarkLogicQuery}.
+ *
+ * Use as :
+ * <tt>declare namespace els-ext = 'fr:askjadev:xml:extfunctions';
+ * mkl-ext:marklogic-write-flush(&lt;marklogic&gt;...&lt;/marklogic&gt;);</tt>
+ *
+ * It raises an error if a batch could not be written since the last flush.
+ */
+public class MarkLogicWriteFlush extends AbstractMLExtensionFunction {
+
+    public static final String EXT_NAMESPACE_URI = "fr:askjadev:xml:extfunctions";
+    public static final String FUNCTION_NAME = "marklogic-write-flush";
+    public static final String EXT_NS_COMMON_PREFIX = "mkl-ext";
+
+    @Override
+    public StructuredQName getFunctionQName() {
+        return new StructuredQName(EXT_NS_COMMON_PREFIX, EXT_NAMESPACE_URI, FUNCTION_NAME);
+    }
+
+    @Override
+    public SequenceType[] getArgumentTypes() {
+        return new SequenceType[]{SequenceType.SINGLE_ITEM};
+    }
+
+    @Override
+    public int getMinimumNumberOfArguments() {
+        return 1;
+    }
+
+    @Override
+    public int getMaximumNumberOfArguments() {
+        return 1;
+    }
+
+    @Override
+    public SequenceType getResultType(SequenceType[] sts) {
+        return SequenceType.EMPTY_SEQUENCE;
+    }
+
+    @Override
+    public boolean hasSideEffects() {
+        return true;
+    }
+
+    @Override
+    public ExtensionFunctionCall makeCallExpression() {
+        return constructExtensionFunctionCall(ExtentionType.FLUSH);
+    }
+
+}
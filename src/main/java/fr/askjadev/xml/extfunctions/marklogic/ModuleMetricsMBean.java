@@ -0,0 +1,39 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+/**
+ * JMX view of a module invoked on an app server. Durations are in
+ * milliseconds, from the call to the end of its results.
+ */
+public interface ModuleMetricsMBean {
+
+    String getModule();
+
+    /**
+     * The app server, as <tt>server:port</tt>.
+     */
+    String getHost();
+
+    /**
+     * <tt>unchecked</tt>, <tt>valid</tt>, <tt>invalid</tt>, or
+     * <tt>unverifiable</tt> when the user may not check it.
+     */
+    String getStatus();
+
+    /**
+     * Why the module is invalid, if it is.
+     */
+    String getError();
+
+    /**
+     * Calls sent to the server, not answered from the cache.
+     */
+    long getCalls();
+
+    double getTimeMean();
+
+    double getTime50thPercentile();
+
+    double getTime99thPercentile();
+
+    double getTimeMax();
+}
@@ -0,0 +1,357 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.FailedRequestException;
+import com.marklogic.client.ForbiddenUserException;
+import net.sf.saxon.trans.XPathException;
+
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide registry of the modules invoked, by app server
+ * (<tt>server:port</tt>) and path.
+ *
+ * Before a module is first invoked, it is checked on the server without
+ * being run (<tt>xdmp:invoke</tt> with <tt>static-check</tt>), on a host
+ * chosen by the {@link HostRouter} as for the call itself: a missing
+ * module, or one that does not compile, then fails with a clear message, and
+ * keeps failing without any request for <tt>recheckInterval</tt>
+ * milliseconds. The check also leaves the module and its imports in the
+ * module cache of the server. A user without the privilege to evaluate
+ * queries cannot check modules: they are then invoked unchecked.
+ *
+ * The modules listed in <tt>preload</tt> are checked on every host in the
+ * background, on the first call to their app server, so that the next calls
+ * do not wait for them to compile.
+ *
+ * The calls of each module and their time, from the call to the end of its
+ * results, are registered as a <tt>type=ModuleMetrics</tt> MBean. Beyond
+ * <tt>maxModules</tt> modules, the least recently invoked one is forgotten,
+ * and its MBean unregistered.
+ *
+ * This can be changed with the system properties
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.modules.validate</tt> (default true),
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.modules.recheckInterval</tt> (ms, default 10000),
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.modules.preload</tt> (comma-separated paths, default none) and
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.modules.maxModules</tt> (default 1000).
+ */
+final class ModuleRegistry {
+
+    static final String PROPERTY_PREFIX = "fr.askjadev.xml.extfunctions.marklogic.modules.";
+
+    static final String STATIC_CHECK = "xquery version \"1.0-ml\";\n"
+            + "declare variable $path as xs:string external;\n"
+            + "xdmp:invoke($path, (), <options xmlns=\"xdmp:eval\"><static-check>true</static-check></options>)";
+
+    private static final Logger LOGGER = Logger.getLogger(ModuleRegistry.class.getName());
+
+    private static final ModuleRegistry INSTANCE = new ModuleRegistry(
+            Boolean.parseBoolean(System.getProperty(PROPERTY_PREFIX + "validate", "true")),
+            Long.getLong(PROPERTY_PREFIX + "recheckInterval", 10000L),
+            split(System.getProperty(PROPERTY_PREFIX + "preload", "")),
+            Integer.getInteger(PROPERTY_PREFIX + "maxModules", 1000));
+
+    private final boolean validate;
+    private final long recheckInterval;
+    private final List<String> preload;
+    private final int maxModules;
+    private final ConcurrentMap<List<String>, Module> modules = new ConcurrentHashMap<>();
+    // The app servers the preloaded modules were sent to
+    private final Set<String> preloaded = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    ModuleRegistry(boolean validate, long recheckInterval, List<String> preload, int maxModules) {
+        super();
+        this.validate = validate;
+        this.recheckInterval = recheckInterval;
+        this.preload = preload;
+        this.maxModules = maxModules;
+    }
+
+    static ModuleRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    private static List<String> split(String paths) {
+        List<String> list = new ArrayList<>();
+        for (String path : paths.split(",")) {
+            if (!path.trim().isEmpty()) {
+                list.add(path.trim());
+            }
+        }
+        return list;
+    }
+
+    /**
+     * The module about to be invoked, checked if it has not been yet.
+     *
+     * @throws XPathException if it is missing or does not compile
+     */
+    Module check(MarkLogicConfig config, String path) throws XPathException {
+        preload(config);
+        Module module = getModule(config, path);
+        module.lastUsed = System.nanoTime();
+        if (validate) {
+            module.validate(config.getHosts(), config.getRouting(), false);
+        }
+        return module;
+    }
+
+    /**
+     * Checks the modules to preload on every host of <tt>config</tt> in the
+     * background, the first time this app server is seen.
+     *
+     * @return null if there is nothing to do
+     */
+    Future<?> preload(final MarkLogicConfig config) {
+        if (preload.isEmpty() || !preloaded.add(HostRouter.key(config.getHosts().get(0)))) {
+            return null;
+        }
+        return ExtensionExecutors.background().submit(new Runnable() {
+            @Override
+            public void run() {
+                for (String path : preload) {
+                    Module module = getModule(config, path);
+                    try {
+                        for (ConnectionDescriptor host : config.getHosts()) {
+                            module.validate(Collections.singletonList(host), config.getRouting(), true);
+                        }
+                    } catch (XPathException | RuntimeException ex) {
+                        LOGGER.log(Level.WARNING, "Module " + path + " could not be preloaded: " + ex.getMessage());
+                    }
+                }
+            }
+        });
+    }
+
+    Module getModule(MarkLogicConfig config, String path) {
+        String host = HostRouter.key(config.getHosts().get(0));
+        List<String> key = Arrays.asList(host, path);
+        Module module = modules.get(key);
+        if (module == null) {
+            Module created = new Module(path, host);
+            module = modules.putIfAbsent(key, created);
+            if (module == null) {
+                module = created;
+                MarkLogicMetrics.getInstance().register(created.getObjectName(), created, ModuleMetricsMBean.class);
+                if (modules.size() > maxModules) {
+                    evict(key);
+                }
+            }
+        }
+        return module;
+    }
+
+    /**
+     * Forgets the least recently invoked module, other than the one just
+     * added.
+     */
+    private synchronized void evict(List<String> added) {
+        while (modules.size() > maxModules) {
+            List<String> oldest = null;
+            long oldestUse = Long.MAX_VALUE;
+            for (Map.Entry<List<String>, Module> entry : modules.entrySet()) {
+                if (!entry.getKey().equals(added) && entry.getValue().lastUsed < oldestUse) {
+                    oldest = entry.getKey();
+                    oldestUse = entry.getValue().lastUsed;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            Module removed = modules.remove(oldest);
+            if (removed != null) {
+                MarkLogicMetrics.getInstance().unregister(removed.getObjectName());
+            }
+        }
+    }
+
+    int size() {
+        return modules.size();
+    }
+
+    enum Status {
+        // Not checked yet, or the server did not answer
+        UNCHECKED,
+        VALID,
+        INVALID,
+        // The user may not check it
+        UNVERIFIABLE
+    }
+
+    /**
+     * A module of an app server. Its state is read without locking, so that
+     * monitoring never waits for a check.
+     */
+    final class Module implements ModuleMetricsMBean {
+        private final String path;
+        private final String host;
+        private final AtomicLong calls = new AtomicLong();
+        private final LatencyHistogram times = new LatencyHistogram();
+        // The hosts it was checked on
+        private final Set<String> validOn = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        // Held during a check, so that concurrent calls wait for the same one
+        private final Object checking = new Object();
+        private volatile Status status = Status.UNCHECKED;
+        private volatile String error;
+        // 0 when never checked
+        private volatile long checkedAt;
+        private volatile long lastUsed = System.nanoTime();
+
+        private Module(String path, String host) {
+            this.path = path;
+            this.host = host;
+        }
+
+        private String getObjectName() {
+            return MarkLogicMetrics.JMX_DOMAIN + ":type=ModuleMetrics,module=" + ObjectName.quote(path)
+                    + ",host=" + ObjectName.quote(host);
+        }
+
+        /**
+         * Checks the module on one of <tt>hosts</tt>, chosen and admitted as
+         * any request is, unless it is known already; waits if it is being
+         * checked. It is left unchecked if every host is left aside.
+         *
+         * @param warm to check it on this host, the only one in <tt>hosts</tt>,
+         *             even if it is valid on another one, so that it is in the
+         *             module cache of each host
+         */
+        void validate(List<ConnectionDescriptor> hosts, MarkLogicConfig.Routing routing, boolean warm) throws XPathException {
+            if (isKnown(hosts.get(0), warm)) {
+                return;
+            }
+            synchronized (checking) {
+                if (isKnown(hosts.get(0), warm)) {
+                    return;
+                }
+                HostRouter router = HostRouter.getInstance();
+                HostRouter.Route route = router.route(hosts, routing, path);
+                if (!router.isAvailable(route.getHost())) {
+                    // Every host is ejected: the call itself checks whether it is back
+                    route.run();
+                    return;
+                }
+                check(route);
+            }
+        }
+
+        /**
+         * @throws XPathException if it was found invalid recently
+         */
+        private boolean isKnown(ConnectionDescriptor descriptor, boolean warm) throws XPathException {
+            Status known = status;
+            boolean recent = checkedAt > 0 && System.currentTimeMillis() - checkedAt < recheckInterval;
+            if (known == Status.INVALID && recent) {
+                throw new XPathException(error);
+            }
+            return known == Status.UNVERIFIABLE
+                    || known == Status.VALID && (!warm || validOn.contains(HostRouter.key(descriptor)))
+                    || known == Status.UNCHECKED && recent;
+        }
+
+        private void check(HostRouter.Route route) throws XPathException {
+            checkedAt = System.currentTimeMillis();
+            DatabaseClientPool.Lease lease;
+            try {
+                route.admit();
+                lease = DatabaseClientPool.getInstance().acquire(route.getHost(), route);
+            } catch (XPathException | RuntimeException ex) {
+                // Not sent: the call itself will tell
+                route.run();
+                LOGGER.log(Level.FINE, "Module " + path + " could not be checked", ex);
+                return;
+            }
+            try {
+                lease.getClient().newServerEval().xquery(STATIC_CHECK).addVariable("path", path).eval().close();
+                route.succeeded();
+                validOn.add(HostRouter.key(route.getHost()));
+                error = null;
+                status = Status.VALID;
+            } catch (ForbiddenUserException ex) {
+                route.succeeded();
+                status = Status.UNVERIFIABLE;
+                LOGGER.log(Level.FINE, "Module " + path + " cannot be checked: " + ex.getMessage());
+            } catch (FailedRequestException ex) {
+                if (Retries.isTransient(ex)) {
+                    route.overloaded();
+                    return;
+                }
+                route.succeeded();
+                validOn.clear();
+                error = "Module " + path + " cannot be invoked on " + host + ": " + ex.getMessage();
+                status = Status.INVALID;
+                throw new XPathException(error, ex);
+            } catch (RuntimeException ex) {
+                if (HostRouter.unanswered(ex)) {
+                    route.failed();
+                }
+                // The call itself will tell
+                LOGGER.log(Level.FINE, "Module " + path + " could not be checked", ex);
+            } finally {
+                lease.release();
+            }
+        }
+
+        void record(long nanos) {
+            calls.incrementAndGet();
+            times.record(nanos);
+        }
+
+        @Override
+        public String getModule() {
+            return path;
+        }
+
+        @Override
+        public String getHost() {
+            return host;
+        }
+
+        @Override
+        public String getStatus() {
+            return status.name().toLowerCase(Locale.ROOT);
+        }
+
+        @Override
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public long getCalls() {
+            return calls.get();
+        }
+
+        @Override
+        public double getTimeMean() {
+            return times.getMeanMillis();
+        }
+
+        @Override
+        public double getTime50thPercentile() {
+            return times.getPercentileMillis(50);
+        }
+
+        @Override
+        public double getTime99thPercentile() {
+            return times.getPercentileMillis(99);
+        }
+
+        @Override
+        public double getTimeMax() {
+            return times.getMaxMillis();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.BooleanValue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Reads the results of a query page after page, each page being a separate
+ * request, so that neither MarkLogic nor the client ever holds more than a
+ * couple of pages. Each page tells first whether another one follows it,
+ * which is then requested as soon as the current one starts being read: the
+ * last page, often the only one, is never followed by a useless request.
+ *
+ * Each page evaluates the query again, up to its last item, and at its own
+ * point in time: reading <tt>n</tt> items costs the server about
+ * <tt>n * n / (2 * pageSize)</tt> items, and updates between two pages show.
+ */
+final class PagedSequenceIterator implements SequenceIterator, AutoCloseable {
+
+    /**
+     * Returns whether there are results after this page, then the
+     * <tt>$length</tt> results of the <tt>$query</tt> element, written by
+     * {@link QueryBatch#queryVariable}, from <tt>$start</tt> (from 1). One
+     * more result is evaluated to tell. JSON nulls are dropped.
+     */
+    static final String WRAPPER = "xquery version \"1.0-ml\";\n"
+            + "declare variable $query external;\n"
+            + "declare variable $start external;\n"
+            + "declare variable $length external;\n"
+            + QueryBatch.VARIABLES_FUNCTION
+            + "let $query := ($query/descendant-or-self::query)[1]\n"
+            + "let $result :=\n"
+            + "  if ($query/@module) then xdmp:invoke(string($query/text), local:variables($query))\n"
+            + "  else xdmp:eval(string($query/text), local:variables($query))\n"
+            + "let $page := fn:subsequence($result[not(. instance of null-node())], xs:integer($start), xs:integer($length) + 1)\n"
+            + "return (fn:count($page) gt xs:integer($length), fn:subsequence($page, 1, xs:integer($length)))";
+
+    /**
+     * Builds the request of a page. Its results start with an
+     * <tt>xs:boolean</tt>: whether there are results after it.
+     */
+    interface Pages {
+        Callable<? extends SequenceIterator> page(long start, int length);
+    }
+
+    private final Pages pages;
+    private final int pageSize;
+    private final ExecutorService executor;
+    private long start = 1;
+    private AsyncSequenceIterator current;
+    private AsyncSequenceIterator next;
+    // Whether another page follows the current one, null until it is read
+    private Boolean more;
+    private boolean finished = false;
+
+    PagedSequenceIterator(Pages pages, int pageSize, ExecutorService executor) {
+        super();
+        this.pages = pages;
+        this.pageSize = pageSize;
+        this.executor = executor;
+        this.current = request(start);
+    }
+
+    private AsyncSequenceIterator request(long from) {
+        return new AsyncSequenceIterator(pages.page(from, pageSize), executor);
+    }
+
+    @Override
+    public Item next() throws XPathException {
+        while (!finished) {
+            if (more == null) {
+                Item flag = current.next();
+                if (!(flag instanceof BooleanValue)) {
+                    close();
+                    throw new XPathException("A page of results must start with whether another one follows.");
+                }
+                more = ((BooleanValue) flag).getBooleanValue();
+                if (more) {
+                    next = request(start + pageSize);
+                }
+            }
+            Item item = current.next();
+            if (item != null) {
+                return item;
+            }
+            if (!more) {
+                close();
+                break;
+            }
+            start += pageSize;
+            current = next;
+            next = null;
+            more = null;
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        current.close();
+        if (next != null) {
+            next.close();
+            next = null;
+        }
+    }
+
+    @Override
+    public SequenceIterator getAnother() throws XPathException {
+        return null;
+    }
+
+    @Override
+    public int getProperties() {
+        return 0;
+    }
+}
@@ -0,0 +1,162 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads a sequence ahead in a background thread, so that reading and parsing
+ * the results overlaps with their processing by Saxon. At most <tt>depth</tt>
+ * items are waiting in the queue: the reader blocks when it is full.
+ *
+ * The source iterator is only used, and closed, by the reader thread.
+ * Closing this iterator before the end, or dropping it, stops the reader.
+ */
+final class PrefetchSequenceIterator implements SequenceIterator, AutoCloseable {
+
+    private static final Object END = new Object();
+
+    private final Reader reader;
+    private final AbandonedIteratorReaper.Registration registration;
+    private boolean finished = false;
+
+    PrefetchSequenceIterator(SequenceIterator source, int depth, ExecutorService executor) {
+        super();
+        this.reader = new Reader(source, depth);
+        this.reader.start(executor);
+        this.registration = AbandonedIteratorReaper.register(this, reader);
+    }
+
+    @Override
+    public Item next() throws XPathException {
+        if (finished) {
+            return null;
+        }
+        Object next;
+        try {
+            next = reader.queue.take();
+        } catch (InterruptedException ex) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted while waiting for MarkLogic results.");
+        }
+        if (next == END) {
+            finished = true;
+            return null;
+        }
+        if (next instanceof Failure) {
+            finished = true;
+            Exception cause = ((Failure) next).cause;
+            if (cause instanceof XPathException) {
+                throw (XPathException) cause;
+            }
+            throw (RuntimeException) cause;
+        }
+        return (Item) next;
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        registration.cancel();
+        reader.cancel();
+    }
+
+    @Override
+    public SequenceIterator getAnother() throws XPathException {
+        return null;
+    }
+
+    @Override
+    public int getProperties() {
+        return 0;
+    }
+
+    /**
+     * The background task. It does not reference the iterator, so that an
+     * abandoned iterator can be collected, and the reader cancelled.
+     */
+    private static final class Reader implements Runnable {
+        private final SequenceIterator source;
+        private final BlockingQueue<Object> queue;
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private volatile boolean cancelled = false;
+        private Future<?> task;
+
+        private Reader(SequenceIterator source, int depth) {
+            this.source = source;
+            this.queue = new ArrayBlockingQueue<>(depth);
+        }
+
+        private void start(ExecutorService executor) {
+            task = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            // The iterator was garbage collected without being closed
+            cancel();
+        }
+
+        private void read() {
+            if (!started.compareAndSet(false, true)) {
+                // Cancelled before we could start
+                return;
+            }
+            try {
+                Item item;
+                while (!cancelled && (item = source.next()) != null) {
+                    queue.put(item);
+                }
+                queue.put(END);
+            } catch (XPathException | RuntimeException ex) {
+                if (!cancelled) {
+                    try {
+                        queue.put(new Failure(ex));
+                    } catch (InterruptedException iex) {
+                        // Cancelled meanwhile
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // Cancelled
+            } finally {
+                source.close();
+            }
+        }
+
+        private synchronized void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            if (started.compareAndSet(false, true)) {
+                // The reader never ran: close the source ourselves
+                task.cancel(false);
+                source.close();
+            } else {
+                // Wake the reader up if it is blocked on a full queue
+                task.cancel(true);
+            }
+            queue.clear();
+        }
+    }
+
+    private static final class Failure {
+        private final Exception cause;
+
+        private Failure(Exception cause) {
+            this.cause = cause;
+        }
+    }
+}
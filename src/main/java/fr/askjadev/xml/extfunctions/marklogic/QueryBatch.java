@@ -0,0 +1,238 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.ma.arrays.ArrayItem;
+import net.sf.saxon.ma.arrays.SimpleArrayItem;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.value.IntegerValue;
+import net.sf.saxon.value.SequenceExtent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Several queries sent in a single request. They are written into a
+ * <tt>&lt;queries&gt;</tt> element, bound to {@link #WRAPPER}, which evaluates
+ * each of them with <tt>xdmp:eval</tt> and returns, for each query, the number
+ * of its results followed by the results. {@link #group} splits that flat
+ * sequence back into one array member per query.
+ */
+final class QueryBatch {
+
+    /**
+     * Declares <tt>local:variables($query)</tt>, which turns the
+     * <tt>&lt;variable&gt;</tt> children of a <tt>&lt;query&gt;</tt> element
+     * into the variables parameter of <tt>xdmp:eval</tt>.
+     */
+    static final String VARIABLES_FUNCTION = "declare function local:variables($query as element()) {\n"
+            + "  for $variable in $query/variable\n"
+            + "  let $type := string($variable/@type)\n"
+            + "  return (\n"
+            + "    xs:QName($variable/@name),\n"
+            + "    if ($type eq \"xs:integer\") then xs:integer($variable)\n"
+            + "    else if ($type eq \"xs:decimal\") then xs:decimal($variable)\n"
+            + "    else if ($type eq \"xs:double\") then xs:double($variable)\n"
+            + "    else if ($type eq \"xs:boolean\") then xs:boolean(normalize-space($variable))\n"
+            + "    else if ($type eq \"element()\") then $variable/*\n"
+            + "    else string($variable))\n"
+            + "};\n";
+
+    /**
+     * Evaluates the queries of <tt>$queries</tt> one after the other. JSON
+     * nulls are dropped, as they would not be counted by the client.
+     */
+    static final String WRAPPER = "xquery version \"1.0-ml\";\n"
+            + "declare variable $queries external;\n"
+            + VARIABLES_FUNCTION
+            + "for $query in ($queries/descendant-or-self::queries)[1]/query\n"
+            + "let $result := xdmp:eval(string($query/text), local:variables($query))[not(. instance of null-node())]\n"
+            + "return (count($result), $result)";
+
+    private final List<String> queries;
+    private final List<List<ExternalVariable>> variables;
+
+    QueryBatch(List<String> queries, List<List<ExternalVariable>> variables) {
+        super();
+        this.queries = queries;
+        this.variables = variables;
+    }
+
+    /**
+     * Pairs the queries with the variable sets. A single query is run once
+     * per variable set, and a single variable set is used by every query;
+     * otherwise there must be as many queries as variable sets. The variables
+     * of the config are bound to every query, unless a variable set has one
+     * with the same name.
+     *
+     * @param queries the <tt>xs:string</tt> queries
+     * @param variableSets the <tt>&lt;variables&gt;</tt> elements
+     * @param common the variables of the config
+     */
+    static QueryBatch read(Sequence queries, Sequence variableSets, List<ExternalVariable> common) throws XPathException {
+        List<String> texts = new ArrayList<>();
+        SequenceIterator it = queries.iterate();
+        for (Item item = it.next(); item != null; item = it.next()) {
+            texts.add(item.getStringValue());
+        }
+        List<List<ExternalVariable>> sets = new ArrayList<>();
+        if (variableSets != null) {
+            it = variableSets.iterate();
+            for (Item item = it.next(); item != null; item = it.next()) {
+                if (!(item instanceof NodeInfo) || ((NodeInfo) item).getNodeKind() != Type.ELEMENT) {
+                    throw new XPathException("The third parameter must be of type: element(variables)*.");
+                }
+                sets.add(merge(common, ExternalVariable.parse((NodeInfo) item)));
+            }
+        }
+        if (texts.isEmpty()) {
+            return new QueryBatch(texts, sets);
+        }
+        if (sets.isEmpty()) {
+            sets.add(common);
+        }
+        if (texts.size() == 1) {
+            texts = Collections.nCopies(sets.size(), texts.get(0));
+        } else if (sets.size() == 1) {
+            sets = Collections.nCopies(texts.size(), sets.get(0));
+        } else if (texts.size() != sets.size()) {
+            throw new XPathException("There must be one query, one variable set, or as many queries as variable sets: got "
+                    + texts.size() + " queries and " + sets.size() + " variable sets.");
+        }
+        return new QueryBatch(texts, sets);
+    }
+
+    private static List<ExternalVariable> merge(List<ExternalVariable> common, List<ExternalVariable> own) {
+        if (common.isEmpty()) {
+            return own;
+        }
+        Set<String> names = new HashSet<>();
+        for (ExternalVariable variable : own) {
+            names.add(variable.getName());
+        }
+        List<ExternalVariable> result = new ArrayList<>(own);
+        for (ExternalVariable variable : common) {
+            if (!names.contains(variable.getName())) {
+                result.add(variable);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The number of queries, i.e. of members in the result.
+     */
+    int size() {
+        return queries.size();
+    }
+
+    /**
+     * What the batch is traced as: its queries.
+     */
+    QueryTracer.Fingerprint getFingerprint() {
+        return QueryTracer.fingerprint(queries);
+    }
+
+    /**
+     * The <tt>$queries</tt> variable of {@link #WRAPPER}.
+     */
+    ExternalVariable toVariable() {
+        StringBuilder sb = new StringBuilder("<queries>");
+        for (int i = 0; i < queries.size(); i++) {
+            appendQuery(sb, queries.get(i), variables.get(i), false);
+        }
+        sb.append("</queries>");
+        return new ExternalVariable("queries", "element()", sb.toString());
+    }
+
+    /**
+     * A single <tt>&lt;query&gt;</tt> element, for the wrappers that run one
+     * query or module: its <tt>module</tt> attribute tells them to use
+     * <tt>xdmp:invoke</tt>.
+     */
+    static ExternalVariable queryVariable(AbstractMLExtensionFunction.ExtentionType type, String moduleOrQuery,
+                                          List<ExternalVariable> variables) {
+        StringBuilder sb = new StringBuilder();
+        appendQuery(sb, moduleOrQuery, variables, type == AbstractMLExtensionFunction.ExtentionType.MODULE);
+        return new ExternalVariable("query", "element()", sb.toString());
+    }
+
+    /**
+     * Writes a <tt>&lt;query&gt;</tt> element, as read by
+     * {@link #VARIABLES_FUNCTION}.
+     */
+    static void appendQuery(StringBuilder sb, String moduleOrQuery, List<ExternalVariable> variables, boolean module) {
+        sb.append(module ? "<query module=\"true\"><text>" : "<query><text>").append(escape(moduleOrQuery)).append("</text>");
+        for (ExternalVariable variable : variables) {
+            sb.append("<variable name=\"").append(escape(variable.getName()))
+                    .append("\" type=\"").append(escape(variable.getType())).append("\">");
+            // element() values are already serialized
+            sb.append("element()".equals(variable.getType()) ? variable.getValue() : escape(variable.getValue()));
+            sb.append("</variable>");
+        }
+        sb.append("</query>");
+    }
+
+    /**
+     * Reads the results of {@link #WRAPPER}, and closes the iterator.
+     *
+     * @return an array with the results of each query
+     */
+    ArrayItem group(SequenceIterator results) throws XPathException {
+        try {
+            List<Sequence> members = new ArrayList<>(queries.size());
+            for (int i = 1; i <= queries.size(); i++) {
+                Item count = results.next();
+                if (!(count instanceof IntegerValue)) {
+                    throw new XPathException("Malformed batch result: no result count for query " + i + ".");
+                }
+                long remaining = ((IntegerValue) count).longValue();
+                List<Item> items = new ArrayList<>();
+                for (; remaining > 0; remaining--) {
+                    Item item = results.next();
+                    if (item == null) {
+                        throw new XPathException("Malformed batch result: missing results for query " + i + ".");
+                    }
+                    items.add(item);
+                }
+                members.add(SequenceExtent.makeSequenceExtent(items));
+            }
+            return new SimpleArrayItem(members);
+        } finally {
+            results.close();
+        }
+    }
+
+    private static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                case '\r':
+                    sb.append("&#13;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
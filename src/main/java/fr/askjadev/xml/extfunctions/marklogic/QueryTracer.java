@@ -0,0 +1,305 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Times each call, from the call to the end of its results, by query
+ * fingerprint: the query with its comments, literals and extra whitespace
+ * removed, or the module path. The slowest fingerprints are kept, and calls
+ * longer than a threshold are logged with where they were made.
+ *
+ * This can be changed with the system properties
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.trace.threshold</tt> (ms, default 1000, negative not to log),
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.trace.topN</tt> (default 20, 0 not to keep any) and
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.trace.maxFingerprints</tt> (default 1000).
+ */
+final class QueryTracer implements SlowQueriesMBean {
+
+    static final String PROPERTY_PREFIX = "fr.askjadev.xml.extfunctions.marklogic.trace.";
+
+    private static final QueryTracer INSTANCE = new QueryTracer(
+            Long.getLong(PROPERTY_PREFIX + "threshold", 1000L),
+            Integer.getInteger(PROPERTY_PREFIX + "topN", 20),
+            Integer.getInteger(PROPERTY_PREFIX + "maxFingerprints", 1000));
+
+    private static final Pattern COMMENT = Pattern.compile("\\(:.*?:\\)", Pattern.DOTALL);
+    private static final Pattern STRING = Pattern.compile("\"(?:[^\"]|\"\")*\"|'(?:[^']|'')*'");
+    private static final Pattern NUMBER = Pattern.compile("(?<![\\w.$-])\\d+(?:\\.\\d*)?(?:[eE][+-]?\\d+)?");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+    // Of the normalized text, in the log and the table
+    private static final int MAX_TEXT = 200;
+
+    private final long threshold;
+    private final int topN;
+    private final int maxFingerprints;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    QueryTracer(long threshold, int topN, int maxFingerprints) {
+        super();
+        this.threshold = threshold;
+        this.topN = topN;
+        this.maxFingerprints = maxFingerprints;
+        MarkLogicMetrics.getInstance().register(MarkLogicMetrics.JMX_DOMAIN + ":type=SlowQueries", this, SlowQueriesMBean.class);
+    }
+
+    static QueryTracer getInstance() {
+        return INSTANCE;
+    }
+
+    boolean isEnabled() {
+        return threshold >= 0 || topN > 0;
+    }
+
+    /**
+     * Starts timing a call.
+     *
+     * @param location where the call is made, in the stylesheet or query
+     * @return null if tracing is disabled
+     */
+    Trace start(Fingerprint fingerprint, String location) {
+        return start(fingerprint, location, null);
+    }
+
+    /**
+     * Starts timing a call, also recorded in the metrics of the module it
+     * invokes.
+     *
+     * @param module null if the call does not invoke a module
+     * @return null if tracing is disabled and there is no module
+     */
+    Trace start(Fingerprint fingerprint, String location, ModuleRegistry.Module module) {
+        return isEnabled() || module != null ? new Trace(this, fingerprint, location, module) : null;
+    }
+
+    private void record(Fingerprint fingerprint, String location, long nanos) {
+        if (threshold >= 0 && nanos >= TimeUnit.MILLISECONDS.toNanos(threshold)) {
+            Logger.getLogger(QueryTracer.class.getName()).log(Level.WARNING,
+                    "Slow MarkLogic query ({0} ms) at {1}, fingerprint {2}: {3}",
+                    new Object[]{TimeUnit.NANOSECONDS.toMillis(nanos), location, fingerprint.getId(), fingerprint.getText()});
+        }
+        if (topN <= 0) {
+            return;
+        }
+        Entry entry = entries.get(fingerprint.getId());
+        if (entry == null) {
+            entry = add(fingerprint, nanos);
+            if (entry == null) {
+                return;
+            }
+        }
+        entry.record(location, nanos);
+    }
+
+    /**
+     * Adds an entry for the fingerprint. When the table is full, the entry
+     * with the shortest longest call makes room, unless it is slower than
+     * this one.
+     */
+    private synchronized Entry add(Fingerprint fingerprint, long nanos) {
+        Entry entry = entries.get(fingerprint.getId());
+        if (entry != null) {
+            return entry;
+        }
+        if (entries.size() >= maxFingerprints) {
+            Entry fastest = null;
+            for (Entry candidate : entries.values()) {
+                if (fastest == null || candidate.getMaxNanos() < fastest.getMaxNanos()) {
+                    fastest = candidate;
+                }
+            }
+            if (fastest == null || fastest.getMaxNanos() >= nanos) {
+                return null;
+            }
+            entries.remove(fastest.fingerprint.getId());
+        }
+        entry = new Entry(fingerprint);
+        entries.put(fingerprint.getId(), entry);
+        return entry;
+    }
+
+    /**
+     * The slowest fingerprints, by longest call.
+     */
+    List<Entry> getSlowest() {
+        List<Entry> slowest = new ArrayList<>(entries.values());
+        Collections.sort(slowest, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(b.getMaxNanos(), a.getMaxNanos());
+            }
+        });
+        return slowest.subList(0, Math.min(topN, slowest.size()));
+    }
+
+    @Override
+    public String[] getSlowestQueries() {
+        List<Entry> slowest = getSlowest();
+        String[] lines = new String[slowest.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = slowest.get(i).toString();
+        }
+        return lines;
+    }
+
+    @Override
+    public long getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public void reset() {
+        entries.clear();
+    }
+
+    /**
+     * The fingerprint of a query, or of a module.
+     */
+    static Fingerprint fingerprint(AbstractMLExtensionFunction.ExtentionType type, String moduleOrQuery) {
+        if (type == AbstractMLExtensionFunction.ExtentionType.MODULE) {
+            return new Fingerprint(type, moduleOrQuery, "module " + moduleOrQuery);
+        }
+        return new Fingerprint(type, moduleOrQuery, normalize(moduleOrQuery));
+    }
+
+    /**
+     * The fingerprint of a batch, made of its distinct queries.
+     */
+    static Fingerprint fingerprint(List<String> queries) {
+        StringBuilder sb = new StringBuilder("batch");
+        for (String query : new LinkedHashSet<>(queries)) {
+            sb.append(sb.length() == 5 ? " " : " ; ").append(normalize(query));
+        }
+        return new Fingerprint(AbstractMLExtensionFunction.ExtentionType.BATCH, null, sb.toString());
+    }
+
+    static String normalize(String query) {
+        String text = COMMENT.matcher(query).replaceAll(" ");
+        text = STRING.matcher(text).replaceAll("?");
+        text = NUMBER.matcher(text).replaceAll("?");
+        return SPACES.matcher(text).replaceAll(" ").trim();
+    }
+
+    static final class Fingerprint {
+        private final AbstractMLExtensionFunction.ExtentionType type;
+        private final String source;
+        private final String id;
+        private final String text;
+
+        private Fingerprint(AbstractMLExtensionFunction.ExtentionType type, String source, String normalized) {
+            this.type = type;
+            this.source = source;
+            // FNV-1a
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < normalized.length(); i++) {
+                hash ^= normalized.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+            this.id = String.format("%016x", hash);
+            this.text = normalized.length() > MAX_TEXT ? normalized.substring(0, MAX_TEXT) + "..." : normalized;
+        }
+
+        /**
+         * Whether this is the fingerprint of this query, so that it can be
+         * reused.
+         */
+        boolean isFor(AbstractMLExtensionFunction.ExtentionType type, String moduleOrQuery) {
+            return this.type == type && moduleOrQuery.equals(source);
+        }
+
+        String getId() {
+            return id;
+        }
+
+        String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * The timing of one call. Ending it more than once has no effect.
+     */
+    static final class Trace {
+        private final QueryTracer tracer;
+        private final Fingerprint fingerprint;
+        private final String location;
+        private final ModuleRegistry.Module module;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean ended = new AtomicBoolean(false);
+
+        private Trace(QueryTracer tracer, Fingerprint fingerprint, String location, ModuleRegistry.Module module) {
+            this.tracer = tracer;
+            this.fingerprint = fingerprint;
+            this.location = location;
+            this.module = module;
+        }
+
+        void end() {
+            if (ended.compareAndSet(false, true)) {
+                long nanos = System.nanoTime() - start;
+                if (tracer.isEnabled()) {
+                    tracer.record(fingerprint, location, nanos);
+                }
+                if (module != null) {
+                    module.record(nanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * The calls of one fingerprint.
+     */
+    static final class Entry {
+        private final Fingerprint fingerprint;
+        private long calls;
+        private long totalNanos;
+        private long maxNanos;
+        private String maxLocation;
+
+        private Entry(Fingerprint fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        private synchronized void record(String location, long nanos) {
+            calls++;
+            totalNanos += nanos;
+            if (nanos >= maxNanos) {
+                maxNanos = nanos;
+                maxLocation = location;
+            }
+        }
+
+        Fingerprint getFingerprint() {
+            return fingerprint;
+        }
+
+        synchronized long getCalls() {
+            return calls;
+        }
+
+        synchronized long getMaxNanos() {
+            return maxNanos;
+        }
+
+        synchronized String getMaxLocation() {
+            return maxLocation;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ROOT, "max %.1f ms, mean %.1f ms, %d calls, fingerprint %s, at %s: %s",
+                    maxNanos / 1e6, calls == 0 ? 0 : totalNanos / 1e6 / calls, calls, fingerprint.getId(), maxLocation, fingerprint.getText());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.expr.LastPositionFinder;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.GroundedIterator;
+import net.sf.saxon.tree.iter.LookaheadIterator;
+import net.sf.saxon.value.SequenceExtent;
+
+import java.util.Arrays;
+
+/**
+ * A sequence that can be read several times without running the query
+ * again: the items read from the source are kept in a growable array, which
+ * every iterator reads from, and which is only filled further when an
+ * iterator goes past its end.
+ *
+ * The source is read to the end only when needed, e.g. for <tt>last()</tt>.
+ * Until then it stays open; if the sequence is dropped before that, the
+ * source is released when it is garbage collected.
+ */
+final class ReplayableSequence implements Sequence {
+
+    private SequenceIterator source;
+    private Item[] items = new Item[16];
+    private int size = 0;
+
+    ReplayableSequence(SequenceIterator source) {
+        super();
+        this.source = source;
+    }
+
+    @Override
+    public Item head() throws XPathException {
+        return get(0);
+    }
+
+    @Override
+    public SequenceIterator iterate() throws XPathException {
+        return new ReplayIterator();
+    }
+
+    /**
+     * @return the item at <tt>index</tt> (from 0), or <tt>null</tt> if there
+     * are not that many items
+     */
+    synchronized Item get(int index) throws XPathException {
+        while (index >= size && source != null) {
+            Item item = source.next();
+            if (item == null) {
+                // The source closes itself at its end
+                source = null;
+            } else {
+                if (size == items.length) {
+                    items = Arrays.copyOf(items, size * 2);
+                }
+                items[size++] = item;
+            }
+        }
+        return index < size ? items[index] : null;
+    }
+
+    synchronized boolean isComplete() {
+        return source == null;
+    }
+
+    synchronized int fill() throws XPathException {
+        get(Integer.MAX_VALUE);
+        return size;
+    }
+
+    private synchronized GroundedValue subsequence(int start) throws XPathException {
+        fill();
+        return SequenceExtent.makeSequenceExtent(Arrays.asList(items).subList(start, size));
+    }
+
+    private final class ReplayIterator implements SequenceIterator, LookaheadIterator, LastPositionFinder, GroundedIterator {
+
+        private int position = 0;
+
+        @Override
+        public Item next() throws XPathException {
+            Item item = get(position);
+            if (item != null) {
+                position++;
+            }
+            return item;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                return get(position) != null;
+            } catch (XPathException ex) {
+                // Let next() report it
+                return true;
+            }
+        }
+
+        @Override
+        public int getLength() throws XPathException {
+            return fill();
+        }
+
+        @Override
+        public GroundedValue materialize() throws XPathException {
+            return subsequence(0);
+        }
+
+        @Override
+        public GroundedValue getResidue() throws XPathException {
+            return subsequence(position);
+        }
+
+        @Override
+        public void close() {
+            // Other iterators may still need the source
+        }
+
+        @Override
+        public SequenceIterator getAnother() throws XPathException {
+            return new ReplayIterator();
+        }
+
+        @Override
+        public int getProperties() {
+            return isComplete()
+                    ? LOOKAHEAD | LAST_POSITION_FINDER | GROUNDED
+                    : LOOKAHEAD;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.GroundedValue;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Process-wide cache of query results, for queries whose result does not
+ * change during a run (lookup tables, taxonomies...). Entries expire after
+ * their time to live, and the least recently used ones are dropped when the
+ * total size of the results exceeds <tt>maxBytes</tt>. The size of a result
+ * is the number of bytes received for it, which is only an estimate of the
+ * memory used by its trees.
+ *
+ * The limit can be changed with the system property
+ * <tt>fr.askjadev.xml.extfunctions.marklogic.cache.maxBytes</tt> (default 64 MB).
+ */
+final class ResultCache {
+
+    private static final ResultCache INSTANCE = new ResultCache(
+            Long.getLong("fr.askjadev.xml.extfunctions.marklogic.cache.maxBytes", 64L * 1024 * 1024));
+
+    private final long maxBytes;
+    // Access-ordered, so that the first entry is the least recently used
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    ResultCache(long maxBytes) {
+        super();
+        this.maxBytes = maxBytes;
+    }
+
+    static ResultCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the cached result, or <tt>null</tt> if there is none or it has
+     * expired
+     */
+    synchronized GroundedValue get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires <= System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    synchronized void put(Key key, GroundedValue value, long bytes, long ttl) {
+        remove(key);
+        if (bytes > maxBytes || ttl <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        entries.put(key, new Entry(value, bytes, now + ttl));
+        totalBytes += bytes;
+        // Drop the expired entries first, then the least recently used ones
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.expires <= now) {
+                it.remove();
+                totalBytes -= entry.bytes;
+            }
+        }
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && totalBytes > maxBytes; ) {
+            Entry entry = it.next();
+            it.remove();
+            totalBytes -= entry.bytes;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void remove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            totalBytes -= entry.bytes;
+        }
+    }
+
+    private static final class Entry {
+        private final GroundedValue value;
+        private final long bytes;
+        private final long expires;
+
+        private Entry(GroundedValue value, long bytes, long expires) {
+            this.value = value;
+            this.bytes = bytes;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * What identifies a result: the query or module, its variables, the hosts
+     * it may be run on, the Saxon configuration its trees belong to, and how
+     * its JSON results are converted.
+     *
+     * The configuration is only weakly referenced, so that the cache does not
+     * keep it, and its name pool, alive; the trees of a cached result still
+     * do, until the result expires or is dropped.
+     */
+    static final class Key {
+        private final AbstractMLExtensionFunction.ExtentionType type;
+        private final String moduleOrQuery;
+        private final List<ExternalVariable> variables;
+        private final List<ConnectionDescriptor> hosts;
+        private final Reference<Configuration> configuration;
+        private final int configurationHash;
+        private final MarkLogicConfig.JsonMode json;
+
+        Key(AbstractMLExtensionFunction.ExtentionType type, String moduleOrQuery, List<ExternalVariable> variables,
+            List<ConnectionDescriptor> hosts, Configuration configuration) {
+            this(type, moduleOrQuery, variables, hosts, configuration, MarkLogicConfig.JsonMode.STRING);
+        }
+
+        /**
+         * @param json how the JSON results were converted
+         */
+        Key(AbstractMLExtensionFunction.ExtentionType type, String moduleOrQuery, List<ExternalVariable> variables,
+            List<ConnectionDescriptor> hosts, Configuration configuration, MarkLogicConfig.JsonMode json) {
+            this.type = type;
+            this.moduleOrQuery = moduleOrQuery;
+            this.variables = variables;
+            this.hosts = hosts;
+            this.configuration = new WeakReference<>(configuration);
+            this.configurationHash = System.identityHashCode(configuration);
+            this.json = json;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return type == other.type
+                    && moduleOrQuery.equals(other.moduleOrQuery)
+                    && variables.equals(other.variables)
+                    && hosts.equals(other.hosts)
+                    && configurationHash == other.configurationHash
+                    // Null once collected: such a key no longer matches any other
+                    && configuration.get() != null && configuration.get() == other.configuration.get()
+                    && json == other.json;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, moduleOrQuery, variables, hosts, configurationHash, json);
+        }
+    }
+}
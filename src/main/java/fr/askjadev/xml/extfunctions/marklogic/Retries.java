@@ -0,0 +1,59 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.FailedRequestException;
+import net.sf.saxon.trans.XPathException;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When a failed request is worth sending again, and how long to wait before
+ * that: exponential backoff with full jitter, so that the calls failing
+ * together do not come back together.
+ */
+final class Retries {
+
+    // No wait longer than this, whatever the attempt
+    static final long MAX_DELAY = 10000L;
+
+    private Retries() {
+        super();
+    }
+
+    /**
+     * Whether the request may succeed if sent again: the server was
+     * unavailable or overloaded (502, 503, 504), or did not answer at all.
+     */
+    static boolean isTransient(Throwable failure) {
+        if (failure instanceof XPathException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        if (failure instanceof FailedRequestException) {
+            FailedRequestException ex = (FailedRequestException) failure;
+            if (ex.getFailedRequest() == null) {
+                return false;
+            }
+            int status = ex.getFailedRequest().getStatusCode();
+            return status == 502 || status == 503 || status == 504;
+        }
+        // Connection refused, reset, timeout... but not a bug of the client
+        return HostRouter.unanswered(failure);
+    }
+
+    /**
+     * The time to wait before the given retry (from 0), in milliseconds:
+     * anything up to <tt>baseDelay * 2^retry</tt>.
+     */
+    static long delay(long baseDelay, int retry) {
+        long ceiling = retry >= 30 ? MAX_DELAY : Math.min(MAX_DELAY, baseDelay << retry);
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    static void pause(long millis) throws XPathException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new XPathException("Interrupted while waiting to retry a MarkLogic request.", ex);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A query or module run once per forest of the database, each run only
+ * seeing the documents of its forest. The forests are listed by
+ * {@link #FORESTS}; each partition is then run by {@link #WRAPPER}, which
+ * evaluates the query with the forest ID as database.
+ */
+final class ScatterGather {
+
+    /**
+     * The IDs of the forests of the database, replicas excluded.
+     */
+    static final String FORESTS = "xquery version \"1.0-ml\";\n"
+            + "for $forest in xdmp:database-forests(xdmp:database(), fn:false()) return fn:string($forest)";
+
+    /**
+     * Runs the <tt>$query</tt> element, written by {@link QueryBatch#queryVariable},
+     * against the <tt>$forest</tt> forest.
+     */
+    static final String WRAPPER = "xquery version \"1.0-ml\";\n"
+            + "declare variable $query external;\n"
+            + "declare variable $forest external;\n"
+            + QueryBatch.VARIABLES_FUNCTION
+            + "let $query := ($query/descendant-or-self::query)[1]\n"
+            + "let $options := <options xmlns=\"xdmp:eval\"><database>{xs:unsignedLong($forest)}</database></options>\n"
+            + "return\n"
+            + "  if ($query/@module) then xdmp:invoke(string($query/text), local:variables($query), $options)\n"
+            + "  else xdmp:eval(string($query/text), local:variables($query), $options)";
+
+    private ScatterGather() {
+        super();
+    }
+
+    /**
+     * The <tt>$forest</tt> variable of {@link #WRAPPER}.
+     */
+    static ExternalVariable forestVariable(String forest) {
+        return new ExternalVariable("forest", "xs:string", forest);
+    }
+
+    /**
+     * Reads the results of {@link #FORESTS}, and closes the iterator.
+     */
+    static List<String> readForests(SequenceIterator results) throws XPathException {
+        try {
+            List<String> forests = new ArrayList<>();
+            for (Item item = results.next(); item != null; item = results.next()) {
+                forests.add(item.getStringValue());
+            }
+            return forests;
+        } finally {
+            results.close();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+/**
+ * JMX view of the slowest queries, registered as
+ * <tt>fr.askjadev.xml.extfunctions.marklogic:type=SlowQueries</tt>.
+ */
+public interface SlowQueriesMBean {
+
+    /**
+     * The slowest query fingerprints, slowest first: their longest and mean
+     * times, number of calls, fingerprint, where the longest call was made,
+     * and the normalized query.
+     */
+    String[] getSlowestQueries();
+
+    /**
+     * Calls longer than this are logged, in milliseconds; negative if none is.
+     */
+    long getThreshold();
+
+    void reset();
+}
@@ -0,0 +1,52 @@
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * Ends a {@link QueryTracer.Trace} once the results are read to the end, fail,
+ * or are closed.
+ */
+final class TracedSequenceIterator implements SequenceIterator, AutoCloseable {
+
+    private final SequenceIterator source;
+    private final QueryTracer.Trace trace;
+
+    TracedSequenceIterator(SequenceIterator source, QueryTracer.Trace trace) {
+        super();
+        this.source = source;
+        this.trace = trace;
+    }
+
+    @Override
+    public Item next() throws XPathException {
+        Item item;
+        try {
+            item = source.next();
+        } catch (XPathException | RuntimeException ex) {
+            trace.end();
+            throw ex;
+        }
+        if (item == null) {
+            trace.end();
+        }
+        return item;
+    }
+
+    @Override
+    public void close() {
+        trace.end();
+        source.close();
+    }
+
+    @Override
+    public SequenceIterator getAnother() throws XPathException {
+        return null;
+    }
+
+    @Override
+    public int getProperties() {
+        return 0;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.ListIterator;
+import net.sf.saxon.value.Int64Value;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Asynchronous request test, with in-memory responses.
+ */
+public class AsyncSequenceIteratorTest {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+
+    @Test
+    public void testRequestIsSentBeforeTheFirstRead() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final CountDownLatch respond = new CountDownLatch(1);
+        AsyncSequenceIterator it = new AsyncSequenceIterator(new Callable<SequenceIterator>() {
+            @Override
+            public SequenceIterator call() throws Exception {
+                sent.countDown();
+                respond.await();
+                return new ListIterator(Arrays.asList(Int64Value.makeIntegerValue(1), Int64Value.makeIntegerValue(2)));
+            }
+        }, EXECUTOR);
+        // Sent without reading anything
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        respond.countDown();
+        assertEquals("1", it.next().getStringValue());
+        assertEquals("2", it.next().getStringValue());
+        assertNull(it.next());
+        assertNull(it.next());
+    }
+
+    @Test
+    public void testErrorsArePropagated() {
+        AsyncSequenceIterator it = new AsyncSequenceIterator(new Callable<SequenceIterator>() {
+            @Override
+            public SequenceIterator call() throws Exception {
+                throw new XPathException("Request failed");
+            }
+        }, EXECUTOR);
+        try {
+            it.next();
+            fail("The request error was not propagated");
+        } catch (XPathException ex) {
+            assertEquals("Request failed", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testCloseBeforeTheResponseClosesIt() throws Exception {
+        final CountDownLatch sent = new CountDownLatch(1);
+        final CountDownLatch respond = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        AsyncSequenceIterator it = new AsyncSequenceIterator(new Callable<SequenceIterator>() {
+            @Override
+            public SequenceIterator call() throws Exception {
+                sent.countDown();
+                respond.await();
+                return new ListIterator(Arrays.asList(Int64Value.makeIntegerValue(1))) {
+                    @Override
+                    public void close() {
+                        closed.countDown();
+                    }
+                };
+            }
+        }, EXECUTOR);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        it.close();
+        respond.countDown();
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertNull(it.next());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.trans.XPathException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * AIMD concurrency limit test.
+ */
+public class ConcurrencyLimitTest {
+
+    private static final long MILLISECOND = 1000000L;
+
+    @Test
+    public void testWaitsForSlot() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(2, 1, 10, 0);
+        limit.acquire(10L);
+        limit.acquire(10L);
+        assertFalse(limit.hasRoom());
+        try {
+            limit.acquire(10L);
+            fail("There is no free slot");
+        } catch (XPathException ex) {
+            assertTrue(ex.getMessage().contains("limit: 2"));
+        }
+        limit.release(MILLISECOND, false);
+        assertTrue(limit.hasRoom());
+    }
+
+    @Test
+    public void testAdditiveIncrease() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(2, 1, 3, 0);
+        for (int i = 0; i < 10; i++) {
+            limit.acquire(10L);
+            limit.acquire(10L);
+            limit.release(MILLISECOND, false);
+            limit.release(MILLISECOND, false);
+        }
+        assertEquals(3, limit.getLimit());
+        // Not reached: not increased
+        limit = new ConcurrencyLimit(2, 1, 10, 0);
+        for (int i = 0; i < 10; i++) {
+            limit.acquire(10L);
+            limit.release(MILLISECOND, false);
+        }
+        assertEquals(2, limit.getLimit());
+    }
+
+    @Test
+    public void testMultiplicativeDecrease() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(16, 2, 32, 0);
+        limit.acquire(10L);
+        limit.release(MILLISECOND, true);
+        assertEquals(8, limit.getLimit());
+        // Same burst
+        limit.acquire(10L);
+        limit.release(-1, true);
+        assertEquals(8, limit.getLimit());
+        assertEquals(0, limit.getInFlight());
+    }
+
+    @Test
+    public void testLatencyTolerance() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(10, 1, 32, 2.0);
+        limit.acquire(10L);
+        limit.release(10 * MILLISECOND, false);
+        limit.acquire(10L);
+        limit.release(15 * MILLISECOND, false);
+        assertEquals(10, limit.getLimit());
+        limit.acquire(10L);
+        limit.release(50 * MILLISECOND, false);
+        assertEquals(9, limit.getLimit());
+    }
+
+    @Test
+    public void testNoLimit() throws Exception {
+        ConcurrencyLimit limit = new ConcurrencyLimit(16, 1, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            limit.acquire(10L);
+        }
+        assertTrue(limit.hasRoom());
+        assertEquals(0, limit.getLimit());
+    }
+}
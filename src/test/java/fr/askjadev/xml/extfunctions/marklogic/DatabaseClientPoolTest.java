@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Client pool test. Clients are created lazily by the MarkLogic API, so no
+ * server is needed.
+ */
+public class DatabaseClientPoolTest {
+
+    private DatabaseClientPool pool;
+
+    @After
+    public void tearDown() {
+        if (pool != null) {
+            pool.clear();
+        }
+    }
+
+    private static ConnectionDescriptor descriptor(String user) {
+        return new ConnectionDescriptor("localhost", 8000, user, "password", null, "basic");
+    }
+
+    @Test
+    public void testSameDescriptorSharesClient() {
+        pool = new DatabaseClientPool(4, 60000L);
+        DatabaseClientPool.Lease first = pool.acquire(descriptor("admin"));
+        DatabaseClientPool.Lease second = pool.acquire(descriptor("admin"));
+        assertSame(first.getClient(), second.getClient());
+        assertEquals(1, pool.size());
+        first.release();
+        second.release();
+        DatabaseClientPool.Lease third = pool.acquire(descriptor("admin"));
+        assertSame(first.getClient(), third.getClient());
+        third.release();
+    }
+
+    @Test
+    public void testDifferentDescriptorsGetDifferentClients() {
+        pool = new DatabaseClientPool(4, 60000L);
+        DatabaseClientPool.Lease first = pool.acquire(descriptor("admin"));
+        DatabaseClientPool.Lease second = pool.acquire(descriptor("other"));
+        assertNotSame(first.getClient(), second.getClient());
+        assertEquals(2, pool.size());
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void testIdleClientsAreEvicted() throws InterruptedException {
+        pool = new DatabaseClientPool(4, 10L);
+        pool.acquire(descriptor("admin")).release();
+        Thread.sleep(20L);
+        pool.evictIdle();
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testCapIsEnforced() {
+        pool = new DatabaseClientPool(1, 60000L);
+        DatabaseClientPool.Lease busy = pool.acquire(descriptor("admin"));
+        // The only slot is busy: a private client is handed out
+        DatabaseClientPool.Lease overflow = pool.acquire(descriptor("other"));
+        assertEquals(1, pool.size());
+        overflow.release();
+        busy.release();
+        // The slot is idle now and gets recycled for the new descriptor
+        DatabaseClientPool.Lease recycled = pool.acquire(descriptor("other"));
+        assertNotSame(busy.getClient(), recycled.getClient());
+        assertEquals(1, pool.size());
+        recycled.release();
+    }
+
+    @Test
+    public void testReleaseIsIdempotent() {
+        pool = new DatabaseClientPool(4, 0L);
+        DatabaseClientPool.Lease lease = pool.acquire(descriptor("admin"));
+        DatabaseClientPool.Lease other = pool.acquire(descriptor("admin"));
+        lease.release();
+        lease.release();
+        // 'other' still holds the client, so it must not be evicted
+        pool.evictIdle();
+        assertEquals(1, pool.size());
+        other.release();
+        pool.evictIdle();
+        assertEquals(0, pool.size());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.eval.EvalResult;
+import com.marklogic.client.io.Format;
+import com.marklogic.client.io.marker.AbstractReadHandle;
+import com.marklogic.client.io.marker.BufferableHandle;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.ma.arrays.ArrayItem;
+import net.sf.saxon.ma.map.MapItem;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.value.AtomicValue;
+import net.sf.saxon.value.BooleanValue;
+import net.sf.saxon.value.DoubleValue;
+import net.sf.saxon.value.Int64Value;
+import net.sf.saxon.value.StringValue;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Result conversion test, on hand-made results.
+ */
+public class EvalResultConverterTest {
+
+    private EvalResultConverter converter;
+
+    @Before
+    public void setUp() {
+        Configuration config = new Configuration();
+        converter = new EvalResultConverter(new Processor(config).newDocumentBuilder(), config);
+    }
+
+    private Item convert(EvalResult result) throws Exception {
+        return converter.convert(result, new CallStatistics());
+    }
+
+    @Test
+    public void testInteger() throws Exception {
+        Item item = convert(new FakeResult(EvalResult.Type.INTEGER, "42"));
+        assertTrue(item instanceof Int64Value);
+        assertEquals(42L, ((Int64Value) item).longValue());
+    }
+
+    @Test
+    public void testBigInteger() throws Exception {
+        Item item = convert(new FakeResult(EvalResult.Type.INTEGER, "123456789012345678901234567890"));
+        assertEquals(BuiltInAtomicType.INTEGER, ((AtomicValue) item).getPrimitiveType());
+        assertEquals("123456789012345678901234567890", item.getStringValue());
+    }
+
+    @Test
+    public void testDateTime() throws Exception {
+        Item item = convert(new FakeResult(EvalResult.Type.DATETIME, "2017-05-02T17:32:00Z"));
+        assertEquals(BuiltInAtomicType.DATE_TIME, ((AtomicValue) item).getPrimitiveType());
+    }
+
+    @Test
+    public void testString() throws Exception {
+        Item item = convert(new FakeResult(EvalResult.Type.STRING, "<not-xml"));
+        assertEquals(BuiltInAtomicType.STRING, ((AtomicValue) item).getPrimitiveType());
+        assertEquals("<not-xml", item.getStringValue());
+    }
+
+    @Test
+    public void testNull() throws Exception {
+        assertNull(convert(new FakeResult(EvalResult.Type.NULL, "")));
+    }
+
+    @Test
+    public void testXml() throws Exception {
+        Item item = convert(new FakeResult(EvalResult.Type.XML, "<test>1</test>"));
+        assertEquals(Type.DOCUMENT, ((NodeInfo) item).getNodeKind());
+        assertEquals("1", item.getStringValue());
+    }
+
+    @Test
+    public void testBytesAreCounted() throws Exception {
+        CallStatistics statistics = new CallStatistics();
+        converter.convert(new FakeResult(EvalResult.Type.XML, "<test>1</test>"), statistics);
+        converter.convert(new FakeResult(EvalResult.Type.INTEGER, "42"), statistics);
+        assertEquals(16L, statistics.bytesConsumed);
+    }
+
+    @Test
+    public void testJsonAsString() throws Exception {
+        Item item = convert(new FakeResult(EvalResult.Type.JSON, "{\"a\": 1}"));
+        assertEquals("{\"a\": 1}", item.getStringValue());
+    }
+
+    @Test
+    public void testJsonAsMap() throws Exception {
+        EvalResultConverter maps = converter.withJson(MarkLogicConfig.JsonMode.MAP, false);
+        Item item = maps.convert(new FakeResult(EvalResult.Type.JSON,
+                "{\"a\": 1, \"b\": [\"x\", null, true, {\"c\": 2.5e1}]}"), new CallStatistics());
+        MapItem map = (MapItem) item;
+        assertEquals(2, map.size());
+        assertEquals(1.0, ((DoubleValue) map.get(new StringValue("a")).head()).getDoubleValue(), 0);
+        ArrayItem array = (ArrayItem) map.get(new StringValue("b")).head();
+        assertEquals(4, array.getMembers().size());
+        assertEquals("x", array.get(0).head().getStringValue());
+        assertNull(array.get(1).head());
+        assertEquals(BooleanValue.TRUE, array.get(2).head());
+        assertEquals(25.0, ((DoubleValue) ((MapItem) array.get(3).head()).get(new StringValue("c")).head()).getDoubleValue(), 0);
+        assertNull(maps.convert(new FakeResult(EvalResult.Type.JSON, "null"), new CallStatistics()));
+    }
+
+    @Test(expected = XPathException.class)
+    public void testMalformedJson() throws Exception {
+        converter.withJson(MarkLogicConfig.JsonMode.MAP, false)
+                .convert(new FakeResult(EvalResult.Type.JSON, "{\"a\": "), new CallStatistics());
+    }
+
+    @Test
+    public void testTextNode() throws Exception {
+        Item item = convert(new FakeResult(EvalResult.Type.TEXTNODE, "some text"));
+        assertEquals(Type.TEXT, ((NodeInfo) item).getNodeKind());
+        assertEquals("some text", item.getStringValue());
+    }
+
+    /**
+     * An in-memory result, as the MarkLogic API would build it from one part.
+     */
+    static class FakeResult implements EvalResult {
+
+        private final Type type;
+        private final String content;
+
+        FakeResult(Type type, String content) {
+            this.type = type;
+            this.content = content;
+        }
+
+        @Override
+        public Type getType() {
+            return type;
+        }
+
+        @Override
+        public Format getFormat() {
+            return type == Type.XML ? Format.XML : Format.TEXT;
+        }
+
+        @Override
+        public <H extends AbstractReadHandle> H get(H handle) {
+            ((BufferableHandle) handle).fromBuffer(content.getBytes(StandardCharsets.UTF_8));
+            return handle;
+        }
+
+        @Override
+        public <T> T getAs(Class<T> as) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getString() {
+            return content;
+        }
+
+        @Override
+        public Number getNumber() {
+            return Double.valueOf(content);
+        }
+
+        @Override
+        public Boolean getBoolean() {
+            return Boolean.valueOf(content);
+        }
+    }
+}
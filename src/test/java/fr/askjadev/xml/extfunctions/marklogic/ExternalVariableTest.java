@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.trans.XPathException;
+import org.junit.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * External variables parsing test.
+ */
+public class ExternalVariableTest {
+
+    private static NodeInfo variables(String xml) throws Exception {
+        NodeInfo doc = new Processor(false).newDocumentBuilder().build(new StreamSource(new StringReader(xml))).getUnderlyingNode();
+        return doc.iterateAxis(AxisInfo.CHILD).next();
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        List<ExternalVariable> parsed = ExternalVariable.parse(variables(
+                "<variables>"
+                + "<variable name='s'>text</variable>"
+                + "<variable name='i' type='xs:integer'>42</variable>"
+                + "<variable name='e' type='element()'><doc a='1'>x</doc></variable>"
+                + "</variables>"));
+        assertEquals(3, parsed.size());
+        assertEquals(new ExternalVariable("s", "xs:string", "text"), parsed.get(0));
+        assertEquals(new ExternalVariable("i", "xs:integer", "42"), parsed.get(1));
+        assertEquals(new ExternalVariable("e", "element()", "<doc a=\"1\">x</doc>"), parsed.get(2));
+    }
+
+    @Test(expected = XPathException.class)
+    public void testUnknownType() throws Exception {
+        ExternalVariable.parse(variables("<variables><variable name='d' type='xs:date'>2017-01-01</variable></variables>"));
+    }
+
+    @Test(expected = XPathException.class)
+    public void testMissingName() throws Exception {
+        ExternalVariable.parse(variables("<variables><variable>1</variable></variables>"));
+    }
+}
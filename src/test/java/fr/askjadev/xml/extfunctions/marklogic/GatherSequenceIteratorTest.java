@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.ListIterator;
+import net.sf.saxon.value.Int64Value;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Partition merging test, with in-memory partitions.
+ */
+public class GatherSequenceIteratorTest {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+
+    /**
+     * A partition returning from and from + 1, once released.
+     */
+    private static Callable<SequenceIterator> partition(final int from, final CountDownLatch release) {
+        return new Callable<SequenceIterator>() {
+            @Override
+            public SequenceIterator call() throws Exception {
+                release.await();
+                return new ListIterator(Arrays.asList(Int64Value.makeIntegerValue(from), Int64Value.makeIntegerValue(from + 1)));
+            }
+        };
+    }
+
+    private static List<String> readAll(SequenceIterator it) throws XPathException {
+        List<String> values = new ArrayList<>();
+        for (Item item = it.next(); item != null; item = it.next()) {
+            values.add(item.getStringValue());
+        }
+        return values;
+    }
+
+    @Test
+    public void testOrdered() throws Exception {
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(0);
+        GatherSequenceIterator it = new GatherSequenceIterator(
+                Arrays.asList(partition(1, first), partition(3, second)), true, EXECUTOR);
+        // The second partition has answered, but the first one is read first
+        first.countDown();
+        assertEquals(Arrays.asList("1", "2", "3", "4"), readAll(it));
+    }
+
+    @Test
+    public void testUnorderedReadsTheFirstResponseFirst() throws Exception {
+        CountDownLatch first = new CountDownLatch(1);
+        CountDownLatch second = new CountDownLatch(0);
+        GatherSequenceIterator it = new GatherSequenceIterator(
+                Arrays.asList(partition(1, first), partition(3, second)), false, EXECUTOR);
+        assertEquals("3", it.next().getStringValue());
+        assertEquals("4", it.next().getStringValue());
+        first.countDown();
+        assertEquals("1", it.next().getStringValue());
+        assertEquals("2", it.next().getStringValue());
+        assertNull(it.next());
+    }
+
+    @Test
+    public void testNoPartition() throws Exception {
+        assertNull(new GatherSequenceIterator(new ArrayList<Callable<SequenceIterator>>(), false, EXECUTOR).next());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.MarkLogicIOException;
+import com.marklogic.client.ResourceNotFoundException;
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host choice and ejection test.
+ */
+public class HostRouterTest {
+
+    private static final ConnectionDescriptor A = new ConnectionDescriptor("a", 8000, "admin", "admin", null, "basic");
+    private static final ConnectionDescriptor B = new ConnectionDescriptor("b", 8000, "admin", "admin", null, "basic");
+    private static final ConnectionDescriptor C = new ConnectionDescriptor("c", 8000, "admin", "admin", null, "basic");
+    private static final List<ConnectionDescriptor> HOSTS = Arrays.asList(A, B, C);
+
+    private static ConnectionDescriptor send(HostRouter router, MarkLogicConfig.Routing routing, String query) {
+        HostRouter.Route route = router.route(HOSTS, routing, query);
+        route.succeeded();
+        route.run();
+        return route.getHost();
+    }
+
+    @Test
+    public void testRoundRobin() {
+        HostRouter router = new HostRouter(10000L, 10000L);
+        Set<ConnectionDescriptor> used = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            used.add(send(router, MarkLogicConfig.Routing.ROUND_ROBIN, "1"));
+        }
+        assertEquals(3, used.size());
+    }
+
+    @Test
+    public void testAffinity() {
+        HostRouter router = new HostRouter(10000L, 10000L);
+        ConnectionDescriptor host = send(router, MarkLogicConfig.Routing.AFFINITY, "/doc");
+        for (int i = 0; i < 5; i++) {
+            assertEquals(host, send(router, MarkLogicConfig.Routing.AFFINITY, "/doc"));
+        }
+    }
+
+    @Test
+    public void testLeastOutstanding() {
+        HostRouter router = new HostRouter(10000L, 10000L);
+        HostRouter.Route first = router.route(HOSTS, MarkLogicConfig.Routing.LEAST_OUTSTANDING, "1");
+        HostRouter.Route second = router.route(HOSTS, MarkLogicConfig.Routing.LEAST_OUTSTANDING, "1");
+        HostRouter.Route third = router.route(HOSTS, MarkLogicConfig.Routing.LEAST_OUTSTANDING, "1");
+        assertEquals(3, new HashSet<>(Arrays.asList(first.getHost(), second.getHost(), third.getHost())).size());
+        second.run();
+        assertEquals(0, router.getOutstanding(second.getHost()));
+        assertEquals(second.getHost(), router.route(HOSTS, MarkLogicConfig.Routing.LEAST_OUTSTANDING, "1").getHost());
+    }
+
+    @Test
+    public void testFailedHostIsEjectedThenChecked() throws Exception {
+        HostRouter router = new HostRouter(100L, 1000L);
+        HostRouter.Route route = router.route(HOSTS, MarkLogicConfig.Routing.AFFINITY, "1");
+        ConnectionDescriptor failed = route.getHost();
+        route.failed();
+        route.run();
+        assertFalse(router.isAvailable(failed));
+        for (int i = 0; i < 10; i++) {
+            assertNotEquals(failed, send(router, MarkLogicConfig.Routing.ROUND_ROBIN, "1"));
+        }
+        Thread.sleep(150L);
+        // Once the ejection is over, a single request checks the host
+        HostRouter.Route check = router.route(HOSTS, MarkLogicConfig.Routing.AFFINITY, "1");
+        assertEquals(failed, check.getHost());
+        assertNotEquals(failed, router.route(HOSTS, MarkLogicConfig.Routing.AFFINITY, "1").getHost());
+        check.succeeded();
+        check.run();
+        assertTrue(router.isAvailable(failed));
+    }
+
+    @Test
+    public void testOthers() {
+        HostRouter router = new HostRouter(10000L, 10000L);
+        assertEquals(Arrays.asList(B, C), router.others(HOSTS, A));
+        HostRouter.Route route = router.route(Arrays.asList(B), MarkLogicConfig.Routing.ROUND_ROBIN, "1");
+        route.failed();
+        route.run();
+        // Neither the excluded host nor an ejected one
+        assertEquals(Arrays.asList(C), router.others(HOSTS, A));
+        assertTrue(router.others(Arrays.asList(A), A).isEmpty());
+    }
+
+    @Test
+    public void testEveryHostEjected() throws Exception {
+        HostRouter router = new HostRouter(10000L, 10000L);
+        for (ConnectionDescriptor host : HOSTS) {
+            HostRouter.Route route = router.route(Arrays.asList(host), MarkLogicConfig.Routing.ROUND_ROBIN, "1");
+            route.failed();
+            route.run();
+            Thread.sleep(5L);
+        }
+        // Still tried, rather than failing without a request
+        assertEquals(A, router.route(HOSTS, MarkLogicConfig.Routing.ROUND_ROBIN, "1").getHost());
+    }
+
+    @Test
+    public void testHostWithFreeSlotFirst() throws Exception {
+        HostRouter router = new HostRouter(10000L, 10000L, 1, 1, 1, 0, 10L);
+        HostRouter.Route first = router.route(HOSTS, MarkLogicConfig.Routing.AFFINITY, "1");
+        first.admit();
+        // Same affinity, but its host is busy
+        HostRouter.Route second = router.route(HOSTS, MarkLogicConfig.Routing.AFFINITY, "1");
+        assertNotEquals(first.getHost(), second.getHost());
+        second.admit();
+        first.succeeded();
+        assertEquals(first.getHost(), router.route(HOSTS, MarkLogicConfig.Routing.AFFINITY, "1").getHost());
+    }
+
+    @Test
+    public void testSlotGivenBackWhenNotSent() throws Exception {
+        HostRouter router = new HostRouter(10000L, 10000L, 1, 1, 1, 0, 10L);
+        List<ConnectionDescriptor> hosts = Arrays.asList(A);
+        for (int i = 0; i < 3; i++) {
+            // As when no client can be created for the host
+            HostRouter.Route route = router.route(hosts, MarkLogicConfig.Routing.ROUND_ROBIN, null);
+            route.admit();
+            route.run();
+        }
+        assertEquals(0, router.getOutstanding(HostRouter.key(A)));
+        assertEquals(1, router.getConcurrencyLimit(HostRouter.key(A)));
+    }
+
+    @Test
+    public void testServerWithPort() throws Exception {
+        ConnectionDescriptor descriptor = ConnectionDescriptor.fromArgs("a:8010", "8000", "admin", "admin", null, null);
+        assertEquals("a", descriptor.getServer());
+        assertEquals(8010, descriptor.getPort());
+        assertEquals(8000, ConnectionDescriptor.fromArgs("::1", "8000", "admin", "admin", null, null).getPort());
+        assertEquals("[::1]", ConnectionDescriptor.fromArgs("[::1]:8010", null, "admin", "admin", null, null).getServer());
+    }
+
+    @Test
+    public void testUnanswered() {
+        assertTrue(HostRouter.unanswered(new RuntimeException(new ConnectException("Connection refused"))));
+        assertTrue(HostRouter.unanswered(new MarkLogicIOException("Reset")));
+        // Answered, or not even sent
+        assertFalse(HostRouter.unanswered(new ResourceNotFoundException("Not found")));
+        assertFalse(HostRouter.unanswered(new NullPointerException()));
+        assertFalse(HostRouter.unanswered(new IllegalArgumentException("Bad host")));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathSelector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MarkLogicMetricsTest {
+
+    private StubMarkLogicServer server;
+    private Processor processor;
+    private String host;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubMarkLogicServer();
+        server.setResponse(StubMarkLogicServer.documents(10, 100));
+        processor = new Processor(false);
+        processor.registerExtensionFunction(new MarkLogicQuery());
+        host = "localhost:" + server.getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        HostRouter.getInstance().clear();
+    }
+
+    private int query() throws Exception {
+        XPathCompiler compiler = processor.newXPathCompiler();
+        compiler.declareNamespace("mkl-ext", MarkLogicQuery.EXT_NAMESPACE_URI);
+        compiler.declareVariable(new QName("config"));
+        XPathSelector selector = compiler.compile("mkl-ext:marklogic-query('()', $config/*)").load();
+        selector.setVariable(new QName("config"),
+                processor.newDocumentBuilder().build(new StreamSource(new StringReader(server.getConfigElement()))));
+        return selector.evaluate().size();
+    }
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMeanMillis(), 0.001);
+        assertEquals(100, histogram.getMaxMillis(), 0.001);
+        // Buckets are within 12.5%
+        assertEquals(50, histogram.getPercentileMillis(50), 50 * 0.125);
+        assertEquals(99, histogram.getPercentileMillis(99), 99 * 0.125);
+        assertEquals(0, new LatencyHistogram().getPercentileMillis(99), 0);
+    }
+
+    @Test
+    public void testBuckets() {
+        for (long micros : new long[]{0, 1, 7, 8, 9, 100, 1000, 123456789L}) {
+            int bucket = LatencyHistogram.bucket(micros);
+            assertTrue(micros < LatencyHistogram.upperBound(bucket));
+            assertTrue(bucket == 0 || micros >= LatencyHistogram.upperBound(bucket - 1));
+        }
+    }
+
+    @Test
+    public void testCallMetrics() throws Exception {
+        server.setLatency(50);
+        assertEquals(10, query());
+        CallMetrics metrics = MarkLogicMetrics.getInstance().getCallMetrics("marklogic-query", host);
+        assertEquals(1, metrics.getCalls());
+        assertEquals(10, metrics.getItemsReturned());
+        assertTrue(metrics.getBytesReceived() >= 1000);
+        assertTrue(metrics.getTimeToFirstByteMean() >= 50);
+        assertTrue(metrics.getTotalTimeMean() >= metrics.getTimeToFirstByteMean());
+        assertTrue(metrics.getParseTimePerItem() > 0);
+        assertEquals(0, metrics.getOutstandingRequests());
+
+        server.failNext(1, 500);
+        try {
+            query();
+            fail("The error should be reported");
+        } catch (SaxonApiException ex) {
+            // Expected
+        }
+        assertEquals(1, metrics.getErrors());
+        assertEquals(1, metrics.getCalls());
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        query();
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName global = new ObjectName(MarkLogicMetrics.JMX_DOMAIN + ":type=Metrics");
+        assertTrue((Long) mbeans.getAttribute(global, "Calls") >= 1);
+        assertNotNull(mbeans.getAttribute(global, "PooledClients"));
+        ObjectName call = new ObjectName(MarkLogicMetrics.JMX_DOMAIN + ":type=CallMetrics,function="
+                + ObjectName.quote("marklogic-query") + ",host=" + ObjectName.quote(host));
+        assertEquals(1L, mbeans.getAttribute(call, "Calls"));
+        assertEquals(10L, mbeans.getAttribute(call, "ItemsReturned"));
+    }
+
+    @Test
+    public void testMicrometer() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        new MarkLogicMeterBinder().bindTo(registry);
+        query();
+        assertEquals(1, registry.get(MarkLogicMeterBinder.PREFIX + "total.time")
+                .tags("function", "marklogic-query", "host", host).timer().count());
+        assertEquals(10, registry.get(MarkLogicMeterBinder.PREFIX + "items")
+                .tags("function", "marklogic-query", "host", host).summary().totalAmount(), 0);
+        assertNotNull(registry.get(MarkLogicMeterBinder.PREFIX + "pool.clients").tags("state", "pooled").gauge());
+    }
+}
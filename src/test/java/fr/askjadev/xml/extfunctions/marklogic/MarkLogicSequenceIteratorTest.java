@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.eval.EvalResult;
+import com.marklogic.client.eval.EvalResultIterator;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Processor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Result iterator test, on hand-made results.
+ */
+public class MarkLogicSequenceIteratorTest {
+
+    private EvalResultConverter converter;
+    private DatabaseClientPool pool;
+
+    @Before
+    public void setUp() {
+        Configuration config = new Configuration();
+        converter = new EvalResultConverter(new Processor(config).newDocumentBuilder(), config);
+        pool = new DatabaseClientPool(4, 0L);
+    }
+
+    @After
+    public void tearDown() {
+        pool.clear();
+    }
+
+    private MarkLogicSequenceIterator iterator(ListResultIterator results) {
+        DatabaseClientPool.Lease lease = pool.acquire(new ConnectionDescriptor("localhost", 8000, "admin", "admin", null, "basic"));
+        return new MarkLogicSequenceIterator(results, converter, lease);
+    }
+
+    @Test
+    public void testFullRead() throws Exception {
+        ListResultIterator results = new ListResultIterator(10);
+        MarkLogicSequenceIterator it = iterator(results);
+        long discarded = MarkLogicMetrics.getInstance().getItemsDiscarded();
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(Integer.toString(i), it.next().getStringValue());
+        }
+        assertNull(it.next());
+        assertTrue(results.closed);
+        assertEquals(discarded, MarkLogicMetrics.getInstance().getItemsDiscarded());
+        // The lease has been released
+        pool.evictIdle();
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testEarlyClose() throws Exception {
+        ListResultIterator results = new ListResultIterator(10);
+        MarkLogicSequenceIterator it = iterator(results);
+        long discarded = MarkLogicMetrics.getInstance().getItemsDiscarded();
+        long earlyCloses = MarkLogicMetrics.getInstance().getEarlyCloses();
+        assertEquals("1", it.next().getStringValue());
+        it.close();
+        it.close();
+        assertTrue(results.closed);
+        assertNull(it.next());
+        assertEquals(discarded + 9, MarkLogicMetrics.getInstance().getItemsDiscarded());
+        assertEquals(earlyCloses + 1, MarkLogicMetrics.getInstance().getEarlyCloses());
+        pool.evictIdle();
+        assertEquals(0, pool.size());
+    }
+
+    /**
+     * Returns the integers 1 to size.
+     */
+    static class ListResultIterator implements EvalResultIterator {
+        private final Iterator<EvalResult> results;
+        private boolean closed = false;
+
+        ListResultIterator(int size) {
+            List<EvalResult> list = new ArrayList<>();
+            for (int i = 1; i <= size; i++) {
+                list.add(new EvalResultConverterTest.FakeResult(EvalResult.Type.INTEGER, Integer.toString(i)));
+            }
+            this.results = list.iterator();
+        }
+
+        @Override
+        public Iterator<EvalResult> iterator() {
+            return this;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return results.hasNext();
+        }
+
+        @Override
+        public EvalResult next() {
+            return results.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
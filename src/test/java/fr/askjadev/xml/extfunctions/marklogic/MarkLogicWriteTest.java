@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathSelector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test of <tt>mkl-ext:marklogic-write</tt> and
+ * <tt>mkl-ext:marklogic-write-flush</tt>, against the stub server.
+ */
+public class MarkLogicWriteTest {
+
+    private StubMarkLogicServer server;
+    private Processor processor;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubMarkLogicServer();
+        processor = new Processor(false);
+        processor.registerExtensionFunction(new MarkLogicWrite());
+        processor.registerExtensionFunction(new MarkLogicWriteFlush());
+    }
+
+    @After
+    public void tearDown() {
+        BulkWriter.closeAll();
+        server.close();
+    }
+
+    private void evaluate(String options, String expression) throws Exception {
+        XPathCompiler compiler = processor.newXPathCompiler();
+        compiler.declareNamespace("mkl-ext", MarkLogicWrite.EXT_NAMESPACE_URI);
+        compiler.declareVariable(new net.sf.saxon.s9api.QName("config"));
+        XPathSelector selector = compiler.compile(expression).load();
+        selector.setVariable(new net.sf.saxon.s9api.QName("config"), processor.newDocumentBuilder().build(new StreamSource(
+                new StringReader(server.getConfigElement().replace("</marklogic>", options + "</marklogic>")))));
+        selector.evaluate();
+    }
+
+    @Test
+    public void testWriteAndFlush() throws Exception {
+        evaluate("<write-batch-size>2</write-batch-size>",
+                "mkl-ext:marklogic-write(for $i in 1 to 5 return '/doc' || $i || '.xml',"
+                        + " for $i in 1 to 5 return parse-xml('<doc>' || $i || '</doc>'), $config/*,"
+                        + " parse-xml('<metadata><collection>c</collection><permission role=\"r\" capability=\"read\"/></metadata>')/*)");
+        // Two full batches are sent at once, the last document waits for the flush
+        evaluate("", "mkl-ext:marklogic-write-flush($config/*)");
+        evaluate("<write-batch-size>2</write-batch-size>", "mkl-ext:marklogic-write-flush($config/*)");
+        Map<String, String> documents = server.getDocuments();
+        assertEquals(5, documents.size());
+        assertEquals("<doc>3</doc>", documents.get("/doc3.xml"));
+    }
+
+    @Test
+    public void testFlushWithoutWrites() throws Exception {
+        evaluate("<write-batch-size>7</write-batch-size>", "mkl-ext:marklogic-write-flush($config/*)");
+        // No batcher is started for options nothing was written with
+        MarkLogicConfig config = new MarkLogicConfig(new ConnectionDescriptor("localhost", server.getPort(), "admin", "admin", null, "basic"));
+        config.setWriteBatchSize(7);
+        assertNull(BulkWriter.find(config));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void testFlushOnCall() throws Exception {
+        evaluate("<write-flush>call</write-flush>", "mkl-ext:marklogic-write('/a.txt', parse-xml('<a>a</a>')/*/text(), $config/*)");
+        assertEquals("a", server.getDocuments().get("/a.txt"));
+    }
+
+    @Test
+    public void testFailedBatch() throws Exception {
+        server.failNext(1, 500);
+        try {
+            evaluate("<write-flush>call</write-flush>", "mkl-ext:marklogic-write('/a.xml', parse-xml('<a/>'), $config/*)");
+            fail("The failed batch must be reported");
+        } catch (SaxonApiException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("1 batch(es) could not be written"));
+        }
+    }
+
+    @Test(expected = SaxonApiException.class)
+    public void testUrisMustMatchDocuments() throws Exception {
+        evaluate("", "mkl-ext:marklogic-write(('/a.xml', '/b.xml'), parse-xml('<a/>'), $config/*)");
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.trans.XPathException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks and preloading of invoked modules, against the stub server.
+ */
+public class ModuleRegistryTest {
+
+    private StubMarkLogicServer server;
+    private MarkLogicConfig config;
+    // The modules checked, in order
+    private final List<String> checked = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubMarkLogicServer();
+        config = new MarkLogicConfig(new ConnectionDescriptor("localhost", server.getPort(), "admin", "admin", null, "basic"));
+        server.setResponder(new StubMarkLogicServer.Responder() {
+            @Override
+            public byte[] respond(StubMarkLogicServer.Request request) throws IOException {
+                if (ModuleRegistry.STATIC_CHECK.equals(request.getQuery())) {
+                    String path = request.getVariables().get("path");
+                    checked.add(path);
+                    if (path.startsWith("/missing")) {
+                        throw new IOException("XDMP-MODNOTFOUND: Module " + path + " not found");
+                    }
+                }
+                return StubMarkLogicServer.multipart(Collections.singletonList(StubMarkLogicServer.Part.string("done")));
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        HostRouter.getInstance().clear();
+    }
+
+    @Test
+    public void testCheckedOnce() throws Exception {
+        Processor processor = new Processor(false);
+        processor.registerExtensionFunction(new MarkLogicQueryInvoke());
+        XPathCompiler compiler = processor.newXPathCompiler();
+        compiler.declareNamespace("mkl-ext", MarkLogicQueryInvoke.EXT_NAMESPACE_URI);
+        String call = "mkl-ext:marklogic-query-invoke('/module.xqy', 'localhost', '" + server.getPort() + "', 'admin', 'admin')";
+        for (int i = 0; i < 3; i++) {
+            XdmValue result = compiler.evaluate(call, null);
+            assertEquals("done", result.itemAt(0).getStringValue());
+        }
+        // Checked once, by the first call: nothing is sent at compile time
+        assertEquals(Collections.singletonList("/module.xqy"), checked);
+        assertEquals(4, server.getRequestCount());
+        ModuleRegistry.Module module = ModuleRegistry.getInstance().getModule(config, "/module.xqy");
+        assertEquals("valid", module.getStatus());
+        assertEquals(3, module.getCalls());
+    }
+
+    @Test
+    public void testMissingModule() throws Exception {
+        ModuleRegistry registry = new ModuleRegistry(true, 60000, Collections.<String>emptyList(), 1000);
+        for (int i = 0; i < 2; i++) {
+            try {
+                registry.check(config, "/missing.xqy");
+                fail("The module is missing");
+            } catch (XPathException ex) {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("/missing.xqy"));
+            }
+        }
+        // The second call fails without a request
+        assertEquals(1, server.getRequestCount());
+        assertEquals("invalid", registry.getModule(config, "/missing.xqy").getStatus());
+    }
+
+    @Test
+    public void testNotAllowedToCheck() throws Exception {
+        ModuleRegistry registry = new ModuleRegistry(true, 60000, Collections.<String>emptyList(), 1000);
+        server.failNext(1, 403);
+        registry.check(config, "/module.xqy");
+        registry.check(config, "/module.xqy");
+        assertEquals(1, server.getRequestCount());
+        assertEquals("unverifiable", registry.getModule(config, "/module.xqy").getStatus());
+    }
+
+    @Test
+    public void testCheckedOnAvailableHost() throws Exception {
+        // The first host does not answer, and is known not to
+        ConnectionDescriptor down = new ConnectionDescriptor("localhost", 1, "admin", "admin", null, "basic");
+        HostRouter.Route failed = HostRouter.getInstance().route(Collections.singletonList(down), MarkLogicConfig.Routing.ROUND_ROBIN, "");
+        failed.failed();
+        failed.run();
+        MarkLogicConfig cluster = new MarkLogicConfig(Collections.unmodifiableList(Arrays.asList(down,
+                new ConnectionDescriptor("localhost", server.getPort(), "admin", "admin", null, "basic"))));
+        ModuleRegistry registry = new ModuleRegistry(true, 60000, Collections.<String>emptyList(), 1000);
+        registry.check(cluster, "/module.xqy");
+        assertEquals(Collections.singletonList("/module.xqy"), checked);
+        assertEquals("valid", registry.getModule(cluster, "/module.xqy").getStatus());
+        // The check took a slot like any request, and gave it back
+        assertEquals(0, HostRouter.getInstance().getOutstanding(HostRouter.key(cluster.getHosts().get(1))));
+    }
+
+    @Test
+    public void testEveryHostEjected() throws Exception {
+        HostRouter.Route failed = HostRouter.getInstance().route(config.getHosts(), MarkLogicConfig.Routing.ROUND_ROBIN, "");
+        failed.failed();
+        failed.run();
+        ModuleRegistry registry = new ModuleRegistry(true, 60000, Collections.<String>emptyList(), 1000);
+        registry.check(config, "/module.xqy");
+        // Left to the call, rather than waiting for a host that is down
+        assertEquals(0, server.getRequestCount());
+        assertEquals("unchecked", registry.getModule(config, "/module.xqy").getStatus());
+    }
+
+    @Test
+    public void testPreload() throws Exception {
+        ModuleRegistry registry = new ModuleRegistry(true, 60000, Arrays.asList("/a.xqy", "/b.xqy"), 1000);
+        registry.preload(config).get();
+        assertEquals(Arrays.asList("/a.xqy", "/b.xqy"), checked);
+        assertEquals("valid", registry.getModule(config, "/b.xqy").getStatus());
+        // Once per app server, and not checked again when invoked
+        assertNull(registry.preload(config));
+        registry.check(config, "/a.xqy");
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsForgotten() throws Exception {
+        ModuleRegistry registry = new ModuleRegistry(false, 60000, Collections.<String>emptyList(), 2);
+        registry.check(config, "/a.xqy");
+        registry.check(config, "/b.xqy");
+        registry.check(config, "/a.xqy");
+        ObjectName b = new ObjectName(MarkLogicMetrics.JMX_DOMAIN + ":type=ModuleMetrics,module=\"/b.xqy\",host=\"localhost:"
+                + server.getPort() + "\"");
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(b));
+        registry.check(config, "/c.xqy");
+        assertEquals(2, registry.size());
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(b));
+    }
+
+    @Test(timeout = 10000)
+    public void testStatusReadDuringCheck() throws Exception {
+        final CountDownLatch answer = new CountDownLatch(1);
+        server.setResponder(new StubMarkLogicServer.Responder() {
+            @Override
+            public byte[] respond(StubMarkLogicServer.Request request) throws IOException {
+                try {
+                    answer.await();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                return new byte[0];
+            }
+        });
+        final ModuleRegistry registry = new ModuleRegistry(true, 60000, Collections.<String>emptyList(), 1000);
+        Future<ModuleRegistry.Module> checked = Executors.newSingleThreadExecutor().submit(new Callable<ModuleRegistry.Module>() {
+            @Override
+            public ModuleRegistry.Module call() throws Exception {
+                return registry.check(config, "/slow.xqy");
+            }
+        });
+        while (server.getRequestCount() == 0) {
+            Thread.sleep(10);
+        }
+        // Monitoring does not wait for the server
+        assertEquals("unchecked", registry.getModule(config, "/slow.xqy").getStatus());
+        answer.countDown();
+        assertEquals("valid", checked.get().getStatus());
+    }
+}
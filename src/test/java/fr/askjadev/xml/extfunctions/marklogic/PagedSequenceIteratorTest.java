@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.tree.iter.ListIterator;
+import net.sf.saxon.value.BooleanValue;
+import net.sf.saxon.value.Int64Value;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Paging test, over an in-memory result.
+ */
+public class PagedSequenceIteratorTest {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+
+    /**
+     * Pages of the integers 1 to size, each after whether another page
+     * follows, recording the requested starts.
+     */
+    private static class IntegerPages implements PagedSequenceIterator.Pages {
+        private final int size;
+        private final List<Long> starts = Collections.synchronizedList(new ArrayList<Long>());
+
+        IntegerPages(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public Callable<SequenceIterator> page(final long start, final int length) {
+            starts.add(start);
+            return new Callable<SequenceIterator>() {
+                @Override
+                public SequenceIterator call() {
+                    List<Item> items = new ArrayList<>();
+                    items.add(BooleanValue.get(start + length <= size));
+                    for (long i = start; i < start + length && i <= size; i++) {
+                        items.add(Int64Value.makeIntegerValue(i));
+                    }
+                    return new ListIterator(items);
+                }
+            };
+        }
+    }
+
+    private static int readAll(SequenceIterator it) throws Exception {
+        int count = 0;
+        for (Item item = it.next(); item != null; item = it.next()) {
+            assertEquals(Integer.toString(++count), item.getStringValue());
+        }
+        return count;
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        IntegerPages pages = new IntegerPages(25);
+        assertEquals(25, readAll(new PagedSequenceIterator(pages, 10, EXECUTOR)));
+        // The third page tells it is the last one: no fourth page is requested
+        assertEquals(Arrays.asList(1L, 11L, 21L), pages.starts);
+    }
+
+    @Test
+    public void testLastPageIsFull() throws Exception {
+        IntegerPages pages = new IntegerPages(20);
+        assertEquals(20, readAll(new PagedSequenceIterator(pages, 10, EXECUTOR)));
+        assertEquals(2, pages.starts.size());
+    }
+
+    @Test
+    public void testSinglePage() throws Exception {
+        IntegerPages pages = new IntegerPages(5);
+        assertEquals(5, readAll(new PagedSequenceIterator(pages, 10, EXECUTOR)));
+        assertEquals(1, pages.starts.size());
+    }
+
+    @Test
+    public void testNextPageIsOnlyRequestedOnceReadingStarts() throws Exception {
+        IntegerPages pages = new IntegerPages(100);
+        PagedSequenceIterator it = new PagedSequenceIterator(pages, 10, EXECUTOR);
+        assertEquals(1, pages.starts.size());
+        assertEquals("1", it.next().getStringValue());
+        assertEquals(2, pages.starts.size());
+        it.close();
+        assertNull(it.next());
+    }
+}
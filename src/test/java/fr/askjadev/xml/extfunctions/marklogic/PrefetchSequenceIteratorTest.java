@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.Int64Value;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Read-ahead test, on an in-memory source.
+ */
+public class PrefetchSequenceIteratorTest {
+
+    @Test
+    public void testOrderIsKept() throws XPathException {
+        CountingSource source = new CountingSource(100, -1);
+        PrefetchSequenceIterator it = new PrefetchSequenceIterator(source, 4, ExtensionExecutors.background());
+        for (int i = 1; i <= 100; i++) {
+            assertEquals(Integer.toString(i), it.next().getStringValue());
+        }
+        assertNull(it.next());
+        assertNull(it.next());
+    }
+
+    @Test
+    public void testEarlyCloseStopsTheReader() throws Exception {
+        CountingSource source = new CountingSource(1000000, -1);
+        PrefetchSequenceIterator it = new PrefetchSequenceIterator(source, 2, ExtensionExecutors.background());
+        assertEquals("1", it.next().getStringValue());
+        it.close();
+        assertTrue(source.closed.await(5, TimeUnit.SECONDS));
+        assertTrue(source.count < 10);
+        assertNull(it.next());
+    }
+
+    @Test
+    public void testErrorsArePropagated() {
+        PrefetchSequenceIterator it = new PrefetchSequenceIterator(new CountingSource(10, 3), 4, ExtensionExecutors.background());
+        try {
+            while (it.next() != null) {
+                // Consume
+            }
+            fail("The source error was not propagated");
+        } catch (XPathException ex) {
+            assertEquals("Failure at 3", ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns 1 to max, and fails at failAt if it is positive.
+     */
+    private static class CountingSource implements SequenceIterator {
+        private final int max;
+        private final int failAt;
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private volatile int count = 0;
+
+        CountingSource(int max, int failAt) {
+            this.max = max;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public Item next() throws XPathException {
+            if (count == max) {
+                return null;
+            }
+            count++;
+            if (count == failAt) {
+                throw new XPathException("Failure at " + count);
+            }
+            return Int64Value.makeIntegerValue(count);
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+
+        @Override
+        public SequenceIterator getAnother() {
+            return null;
+        }
+
+        @Override
+        public int getProperties() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.ma.arrays.ArrayItem;
+import net.sf.saxon.om.AxisInfo;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.iter.ListIterator;
+import net.sf.saxon.value.Int64Value;
+import net.sf.saxon.value.SequenceExtent;
+import net.sf.saxon.value.StringValue;
+import org.junit.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Batch request building and result grouping test.
+ */
+public class QueryBatchTest {
+
+    private static final List<ExternalVariable> NONE = Collections.emptyList();
+
+    private static NodeInfo variables(String xml) throws Exception {
+        NodeInfo doc = new Processor(false).newDocumentBuilder().build(new StreamSource(new StringReader(xml))).getUnderlyingNode();
+        return doc.iterateAxis(AxisInfo.CHILD).next();
+    }
+
+    private static SequenceExtent queries(String... queries) {
+        StringValue[] values = new StringValue[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            values[i] = new StringValue(queries[i]);
+        }
+        return new SequenceExtent(values);
+    }
+
+    @Test
+    public void testOneQueryPerVariableSet() throws Exception {
+        QueryBatch batch = QueryBatch.read(queries("$id"),
+                new SequenceExtent(new Item[]{
+                        variables("<variables><variable name='id'>1</variable></variables>"),
+                        variables("<variables><variable name='id'>2</variable></variables>")}),
+                Collections.singletonList(new ExternalVariable("lang", "xs:string", "fr")));
+        assertEquals(2, batch.size());
+        assertEquals(new ExternalVariable("queries", "element()",
+                "<queries>"
+                + "<query><text>$id</text><variable name=\"id\" type=\"xs:string\">1</variable>"
+                + "<variable name=\"lang\" type=\"xs:string\">fr</variable></query>"
+                + "<query><text>$id</text><variable name=\"id\" type=\"xs:string\">2</variable>"
+                + "<variable name=\"lang\" type=\"xs:string\">fr</variable></query>"
+                + "</queries>"),
+                batch.toVariable());
+    }
+
+    @Test
+    public void testQueryTextIsEscaped() throws Exception {
+        QueryBatch batch = QueryBatch.read(queries("<a>{1 &lt; 2}</a>", "1"), null, NONE);
+        assertEquals(new ExternalVariable("queries", "element()",
+                "<queries><query><text>&lt;a&gt;{1 &amp;lt; 2}&lt;/a&gt;</text></query><query><text>1</text></query></queries>"),
+                batch.toVariable());
+    }
+
+    @Test(expected = XPathException.class)
+    public void testMismatchedCounts() throws Exception {
+        QueryBatch.read(queries("1", "2", "3"),
+                new SequenceExtent(new Item[]{variables("<variables/>"), variables("<variables/>")}), NONE);
+    }
+
+    @Test
+    public void testGroup() throws Exception {
+        QueryBatch batch = QueryBatch.read(queries("1, 2", "()", "3"), null, NONE);
+        List<Item> results = Arrays.<Item>asList(
+                Int64Value.makeIntegerValue(2), new StringValue("1"), new StringValue("2"),
+                Int64Value.makeIntegerValue(0),
+                Int64Value.makeIntegerValue(1), new StringValue("3"));
+        ArrayItem array = batch.group(new ListIterator(results));
+        assertEquals(3, array.getMembers().size());
+        assertEquals(2, SequenceExtent.makeSequenceExtent(array.get(0).iterate()).getLength());
+        assertNull(array.get(1).head());
+        assertEquals("3", array.get(2).head().getStringValue());
+    }
+
+    @Test(expected = XPathException.class)
+    public void testTruncatedResult() throws Exception {
+        QueryBatch batch = QueryBatch.read(queries("1, 2"), null, NONE);
+        batch.group(new ListIterator(Arrays.<Item>asList(Int64Value.makeIntegerValue(2), new StringValue("1"))));
+    }
+}
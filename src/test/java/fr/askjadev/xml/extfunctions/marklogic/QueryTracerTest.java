@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmDestination;
+import net.sf.saxon.s9api.XsltTransformer;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import javax.xml.transform.stream.StreamSource;
+import java.lang.management.ManagementFactory;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class QueryTracerTest {
+
+    private static QueryTracer.Fingerprint fingerprint(String query) {
+        return QueryTracer.fingerprint(AbstractMLExtensionFunction.ExtentionType.XQUERY, query);
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("for $d1 in collection(?) where $d1/@n = ? return $d1",
+                QueryTracer.normalize("for $d1 in collection('a''b') (: all\n of them :)\n  where $d1/@n = 1.5e3\treturn $d1"));
+        assertEquals("doc(?)", QueryTracer.normalize("doc(\"/a.xml\")"));
+    }
+
+    @Test
+    public void testFingerprint() {
+        assertEquals(fingerprint("doc('/a.xml')").getId(), fingerprint("doc(\"/b.xml\")  ").getId());
+        assertNotEquals(fingerprint("doc('/a.xml')").getId(), fingerprint("collection('/a')").getId());
+        QueryTracer.Fingerprint module = QueryTracer.fingerprint(AbstractMLExtensionFunction.ExtentionType.MODULE, "/m.xqy");
+        assertEquals("module /m.xqy", module.getText());
+        assertTrue(module.isFor(AbstractMLExtensionFunction.ExtentionType.MODULE, "/m.xqy"));
+        assertFalse(module.isFor(AbstractMLExtensionFunction.ExtentionType.XQUERY, "/m.xqy"));
+        assertEquals(QueryTracer.fingerprint(Arrays.asList("1", "1")).getId(), QueryTracer.fingerprint(Arrays.asList("2")).getId());
+    }
+
+    @Test
+    public void testSlowest() throws Exception {
+        QueryTracer tracer = new QueryTracer(-1, 2, 3);
+        for (String query : new String[]{"a", "b", "c", "d"}) {
+            QueryTracer.Trace trace = tracer.start(fingerprint(query), "here");
+            Thread.sleep(query.equals("b") ? 30 : query.equals("d") ? 20 : 1);
+            trace.end();
+            trace.end();
+        }
+        // d replaced the fastest of a and c, and the table shows the two slowest
+        List<QueryTracer.Entry> slowest = tracer.getSlowest();
+        assertEquals(2, slowest.size());
+        assertEquals("b", slowest.get(0).getFingerprint().getText());
+        assertEquals("d", slowest.get(1).getFingerprint().getText());
+        assertEquals(1, slowest.get(0).getCalls());
+        assertEquals("here", slowest.get(0).getMaxLocation());
+        assertTrue(tracer.getSlowestQueries()[0].startsWith("max "));
+        tracer.reset();
+        assertEquals(0, tracer.getSlowest().size());
+    }
+
+    @Test
+    public void testThreshold() {
+        final List<LogRecord> records = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                records.add(record);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(QueryTracer.class.getName());
+        logger.addHandler(handler);
+        try {
+            new QueryTracer(0, 0, 10).start(fingerprint("doc('/a.xml')"), "test.xsl:12").end();
+            new QueryTracer(60000, 0, 10).start(fingerprint("doc('/a.xml')"), "test.xsl:12").end();
+        } finally {
+            logger.removeHandler(handler);
+        }
+        assertEquals(1, records.size());
+        assertEquals("test.xsl:12", records.get(0).getParameters()[1]);
+        assertEquals("doc(?)", records.get(0).getParameters()[3]);
+    }
+
+    @Test
+    public void testLocation() throws Exception {
+        try (StubMarkLogicServer server = new StubMarkLogicServer()) {
+            server.setResponse(StubMarkLogicServer.documents(3, 100));
+            Processor processor = new Processor(false);
+            processor.registerExtensionFunction(new MarkLogicQuery());
+            String stylesheet = "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'\n"
+                    + "    xmlns:mkl-ext='" + MarkLogicQuery.EXT_NAMESPACE_URI + "'>\n"
+                    + "  <xsl:variable name='config'>" + server.getConfigElement() + "</xsl:variable>\n"
+                    + "  <xsl:template name='xsl:initial-template'>\n"
+                    + "    <xsl:value-of select=\"count(mkl-ext:marklogic-query('(: traced :) 42', $config/*))\"/>\n"
+                    + "  </xsl:template>\n"
+                    + "</xsl:stylesheet>";
+            XsltTransformer transformer = processor.newXsltCompiler()
+                    .compile(new StreamSource(new StringReader(stylesheet), "file:/test.xsl")).load();
+            transformer.setInitialTemplate(new net.sf.saxon.s9api.QName("http://www.w3.org/1999/XSL/Transform", "initial-template"));
+            XdmDestination destination = new XdmDestination();
+            transformer.setDestination(destination);
+            transformer.transform();
+            assertEquals("3", destination.getXdmNode().getStringValue());
+        }
+        for (QueryTracer.Entry entry : QueryTracer.getInstance().getSlowest()) {
+            if (entry.getFingerprint().getText().equals("?")) {
+                assertEquals("file:/test.xsl:5", entry.getMaxLocation());
+                return;
+            }
+        }
+        fail("The query should be traced");
+    }
+
+    @Test
+    public void testFailedCall() throws Exception {
+        try (StubMarkLogicServer server = new StubMarkLogicServer()) {
+            server.failNext(10, 500);
+            Processor processor = new Processor(false);
+            processor.registerExtensionFunction(new MarkLogicQuery());
+            XPathCompiler compiler = processor.newXPathCompiler();
+            compiler.declareNamespace("mkl-ext", MarkLogicQuery.EXT_NAMESPACE_URI);
+            compiler.declareVariable(new net.sf.saxon.s9api.QName("config"));
+            XPathSelector selector = compiler.compile("mkl-ext:marklogic-query('xdmp:failed-call()', $config/*)").load();
+            selector.setVariable(new net.sf.saxon.s9api.QName("config"), processor.newDocumentBuilder().build(
+                    new StreamSource(new StringReader(server.getConfigElement()))));
+            try {
+                selector.evaluate();
+                fail("The server fails");
+            } catch (SaxonApiException ex) {
+                // Expected
+            }
+        }
+        for (QueryTracer.Entry entry : QueryTracer.getInstance().getSlowest()) {
+            if (entry.getFingerprint().getText().equals("xdmp:failed-call()")) {
+                assertEquals(1, entry.getCalls());
+                return;
+            }
+        }
+        fail("The failed call should be traced");
+    }
+
+    @Test
+    public void testRegistered() throws Exception {
+        assertTrue(QueryTracer.getInstance().isEnabled());
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName(MarkLogicMetrics.JMX_DOMAIN + ":type=SlowQueries")));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.expr.LastPositionFinder;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.Int64Value;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replay buffer test, on an in-memory source.
+ */
+public class ReplayableSequenceTest {
+
+    @Test
+    public void testReplayDoesNotReadTheSourceAgain() throws XPathException {
+        CountingSource source = new CountingSource(50);
+        ReplayableSequence sequence = new ReplayableSequence(source);
+        SequenceIterator first = sequence.iterate();
+        assertEquals("1", first.next().getStringValue());
+        assertEquals(1, source.count);
+        SequenceIterator second = first.getAnother();
+        for (int i = 1; i <= 50; i++) {
+            assertEquals(Integer.toString(i), second.next().getStringValue());
+        }
+        assertNull(second.next());
+        assertEquals("2", first.next().getStringValue());
+        assertEquals(50, source.count);
+        assertEquals(1, source.closes);
+    }
+
+    @Test
+    public void testPropertiesOnceComplete() throws XPathException {
+        ReplayableSequence sequence = new ReplayableSequence(new CountingSource(3));
+        SequenceIterator it = sequence.iterate();
+        assertEquals(0, it.getProperties() & SequenceIterator.LAST_POSITION_FINDER);
+        assertEquals(3, ((LastPositionFinder) it).getLength());
+        int properties = it.getAnother().getProperties();
+        assertEquals(SequenceIterator.LAST_POSITION_FINDER, properties & SequenceIterator.LAST_POSITION_FINDER);
+        assertEquals(SequenceIterator.GROUNDED, properties & SequenceIterator.GROUNDED);
+    }
+
+    /**
+     * Returns 1 to max, and closes itself at its end like the MarkLogic iterator.
+     */
+    private static class CountingSource implements SequenceIterator {
+        private final int max;
+        private int count = 0;
+        private int closes = 0;
+
+        CountingSource(int max) {
+            this.max = max;
+        }
+
+        @Override
+        public Item next() {
+            if (count == max) {
+                close();
+                return null;
+            }
+            return Int64Value.makeIntegerValue(++count);
+        }
+
+        @Override
+        public void close() {
+            closes++;
+        }
+
+        @Override
+        public SequenceIterator getAnother() {
+            return null;
+        }
+
+        @Override
+        public int getProperties() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.value.StringValue;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Result cache test.
+ */
+public class ResultCacheTest {
+
+    private static final List<ExternalVariable> NO_VARIABLES = Collections.emptyList();
+
+    private final Configuration config = new Configuration();
+    private final List<ConnectionDescriptor> hosts = Collections.singletonList(new ConnectionDescriptor("localhost", 8000, "admin", "admin", null, "basic"));
+
+    private ResultCache.Key key(String query) {
+        return new ResultCache.Key(AbstractMLExtensionFunction.ExtentionType.XQUERY, query, NO_VARIABLES, hosts, config);
+    }
+
+    @Test
+    public void testHit() {
+        ResultCache cache = new ResultCache(1000L);
+        GroundedValue value = new StringValue("result");
+        cache.put(key("1"), value, 10L, 60000L);
+        assertSame(value, cache.get(key("1")));
+        assertNull(cache.get(key("2")));
+        assertNull(cache.get(new ResultCache.Key(AbstractMLExtensionFunction.ExtentionType.MODULE, "1", NO_VARIABLES, hosts, config)));
+        assertNull(cache.get(new ResultCache.Key(AbstractMLExtensionFunction.ExtentionType.XQUERY, "1", NO_VARIABLES, hosts, new Configuration())));
+        List<ExternalVariable> variables = Collections.singletonList(new ExternalVariable("x", "xs:string", "1"));
+        assertNull(cache.get(new ResultCache.Key(AbstractMLExtensionFunction.ExtentionType.XQUERY, "1", variables, hosts, config)));
+    }
+
+    @Test
+    public void testExpiry() throws InterruptedException {
+        ResultCache cache = new ResultCache(1000L);
+        cache.put(key("1"), new StringValue("result"), 10L, 10L);
+        Thread.sleep(20L);
+        assertNull(cache.get(key("1")));
+        assertEquals(0L, cache.getTotalBytes());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsDropped() {
+        ResultCache cache = new ResultCache(100L);
+        cache.put(key("1"), new StringValue("1"), 40L, 60000L);
+        cache.put(key("2"), new StringValue("2"), 40L, 60000L);
+        cache.get(key("1"));
+        cache.put(key("3"), new StringValue("3"), 40L, 60000L);
+        assertNotNull(cache.get(key("1")));
+        assertNull(cache.get(key("2")));
+        assertNotNull(cache.get(key("3")));
+        assertEquals(80L, cache.getTotalBytes());
+        // Too big to be cached at all
+        cache.put(key("4"), new StringValue("4"), 200L, 60000L);
+        assertNull(cache.get(key("4")));
+    }
+
+    @Test
+    public void testConfigurationNotKept() throws InterruptedException {
+        ResultCache cache = new ResultCache(1000L);
+        Configuration other = new Configuration();
+        WeakReference<Configuration> reference = new WeakReference<>(other);
+        cache.put(new ResultCache.Key(AbstractMLExtensionFunction.ExtentionType.XQUERY, "1", NO_VARIABLES, hosts, other),
+                new StringValue("result"), 10L, 60000L);
+        other = null;
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+        assertEquals(1, cache.size());
+    }
+}
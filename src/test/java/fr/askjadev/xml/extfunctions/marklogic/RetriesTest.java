@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.marklogic.client.FailedRequestException;
+import com.marklogic.client.ForbiddenUserException;
+import com.marklogic.client.MarkLogicIOException;
+import com.marklogic.client.MarkLogicInternalException;
+import com.marklogic.client.impl.FailedRequest;
+import net.sf.saxon.trans.XPathException;
+import org.junit.Test;
+
+import java.net.SocketException;
+
+import static org.junit.Assert.*;
+
+public class RetriesTest {
+
+    private static FailedRequestException failure(int status) {
+        FailedRequest request = new FailedRequest();
+        request.setStatusCode(status);
+        return new FailedRequestException("Failed", request);
+    }
+
+    @Test
+    public void testTransientFailures() {
+        assertTrue(Retries.isTransient(new XPathException(failure(503))));
+        assertTrue(Retries.isTransient(failure(502)));
+        assertTrue(Retries.isTransient(failure(504)));
+        assertTrue(Retries.isTransient(new RuntimeException(new SocketException("Connection reset"))));
+        assertTrue(Retries.isTransient(new XPathException(new MarkLogicIOException("Connection reset"))));
+        assertFalse(Retries.isTransient(new XPathException(failure(500))));
+        assertFalse(Retries.isTransient(new XPathException(failure(404))));
+        assertFalse(Retries.isTransient(new ForbiddenUserException("Forbidden")));
+        assertFalse(Retries.isTransient(new XPathException("Malformed result")));
+    }
+
+    @Test
+    public void testClientFailures() {
+        assertFalse(Retries.isTransient(new IllegalArgumentException()));
+        assertFalse(Retries.isTransient(new NullPointerException()));
+        assertFalse(Retries.isTransient(new IllegalStateException("Already closed")));
+        assertFalse(Retries.isTransient(new MarkLogicInternalException("Unexpected")));
+    }
+
+    @Test
+    public void testDelay() {
+        for (int retry = 0; retry < 40; retry++) {
+            long delay = Retries.delay(100, retry);
+            assertTrue(delay >= 0);
+            assertTrue(delay <= Math.min(Retries.MAX_DELAY, retry < 10 ? 100L << retry : Long.MAX_VALUE));
+        }
+        assertEquals(0, Retries.delay(0, 3));
+    }
+}
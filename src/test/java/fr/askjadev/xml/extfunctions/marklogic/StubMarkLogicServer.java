@@ -0,0 +1,556 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process HTTP server answering the REST <tt>/v1/eval</tt> and
+ * <tt>/v1/invoke</tt> requests with <tt>multipart/mixed</tt> responses, for
+ * offline tests and benchmarks. It also accepts the bulk writes of
+ * <tt>WriteBatcher</tt>, as a single forest, and keeps the documents. By default every request gets the same
+ * response, whatever the query; a {@link Responder} can look at the request.
+ * Authentication is not checked: use the basic scheme.
+ *
+ * Latency, bandwidth, errors and dropped connections can be injected, to
+ * reproduce a slow or failing server.
+ */
+final class StubMarkLogicServer implements AutoCloseable {
+
+    private static final String BOUNDARY = "STUB_BOUNDARY";
+
+    /**
+     * The status with which {@link #failNext} and {@link #setFailureRate}
+     * close the connection without any response.
+     */
+    static final int DROP = 0;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final AtomicInteger failuresToInject = new AtomicInteger();
+    // Seeded, so that a failure rate always fails the same requests
+    private final Random random = new Random(0);
+    private volatile Responder responder = fixed(new byte[0]);
+    private volatile long latency = 0;
+    private volatile long bandwidth = 0;
+    private volatile int failureStatus = 500;
+    private volatile double failureRate = 0;
+    private volatile int failureRateStatus = 500;
+    private volatile Request lastRequest;
+    private final Map<String, String> documents = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+
+    StubMarkLogicServer() throws IOException {
+        super();
+        // Otherwise headers and body wait for each other's ACK, adding ~40 ms per request
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1/eval", new EvalHandler());
+        server.createContext("/v1/invoke", new EvalHandler());
+        server.createContext("/v1/internal/forestinfo", new ForestsHandler());
+        server.createContext("/v1/documents", new DocumentsHandler());
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * A <tt>&lt;marklogic&gt;</tt> element connecting to this server.
+     */
+    String getConfigElement() {
+        return "<marklogic><server>localhost</server><port>" + getPort() + "</port>"
+                + "<user>admin</user><password>admin</password></marklogic>";
+    }
+
+    /**
+     * Sets the parts returned to every request.
+     */
+    void setResponse(List<Part> parts) {
+        responder = fixed(multipart(parts));
+    }
+
+    /**
+     * Sets a recorded response body, whose parts are separated by
+     * <tt>--STUB_BOUNDARY</tt>.
+     */
+    void setRecordedResponse(byte[] body) {
+        responder = fixed(body);
+    }
+
+    /**
+     * Computes the response of each request.
+     */
+    void setResponder(Responder responder) {
+        this.responder = responder;
+    }
+
+    private static Responder fixed(final byte[] body) {
+        return new Responder() {
+            @Override
+            public byte[] respond(Request request) {
+                return body;
+            }
+        };
+    }
+
+    /**
+     * Waits <tt>millis</tt> milliseconds before answering each request.
+     */
+    void setLatency(long millis) {
+        this.latency = millis;
+    }
+
+    /**
+     * Writes response bodies at no more than <tt>bytesPerSecond</tt>; 0, the
+     * default, does not throttle.
+     */
+    void setBandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Answers the next <tt>count</tt> requests with the HTTP <tt>status</tt>
+     * and a MarkLogic error body, or drops their connection if it is
+     * {@link #DROP}. Note that the client retries on 503.
+     */
+    void failNext(int count, int status) {
+        failureStatus = status;
+        failuresToInject.set(count);
+    }
+
+    /**
+     * Fails each request with the probability <tt>rate</tt>, as
+     * {@link #failNext} would.
+     */
+    void setFailureRate(double rate, int status) {
+        failureRateStatus = status;
+        failureRate = rate;
+    }
+
+    int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * The highest number of requests being handled at the same time.
+     */
+    int getMaxConcurrentRequests() {
+        return maxActive.get();
+    }
+
+    Request getLastRequest() {
+        return lastRequest;
+    }
+
+    /**
+     * The documents written so far, by URI, in the order they arrived.
+     */
+    Map<String, String> getDocuments() {
+        synchronized (documents) {
+            return new LinkedHashMap<>(documents);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    /**
+     * The body of a response with the given parts; an empty result has no
+     * body at all.
+     */
+    static byte[] multipart(List<Part> parts) {
+        if (parts.isEmpty()) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Part part : parts) {
+            write(out, "--" + BOUNDARY + "\r\n"
+                    + "Content-Type: " + part.contentType + "\r\n"
+                    + "X-Primitive: " + part.primitive + "\r\n"
+                    + "Content-Length: " + part.body.length + "\r\n\r\n");
+            out.write(part.body, 0, part.body.length);
+            write(out, "\r\n");
+        }
+        write(out, "--" + BOUNDARY + "--\r\n");
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * An XML document of about <tt>size</tt> bytes.
+     */
+    static String document(int size) {
+        StringBuilder sb = new StringBuilder("<doc>");
+        while (sb.length() < size - 6) {
+            sb.append("<p>text</p>");
+        }
+        return sb.append("</doc>").toString();
+    }
+
+    /**
+     * <tt>count</tt> XML documents of about <tt>size</tt> bytes each.
+     */
+    static List<Part> documents(int count, int size) {
+        Part[] parts = new Part[count];
+        Arrays.fill(parts, Part.xml(document(size)));
+        return Arrays.asList(parts);
+    }
+
+    /**
+     * A part of the response.
+     */
+    static final class Part {
+        private final String contentType;
+        private final String primitive;
+        private final byte[] body;
+
+        Part(String contentType, String primitive, String body) {
+            this.contentType = contentType;
+            this.primitive = primitive;
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+        }
+
+        static Part xml(String document) {
+            return new Part("application/xml", "node()", document);
+        }
+
+        static Part string(String value) {
+            return new Part("text/plain", "string", value);
+        }
+
+        static Part json(String document) {
+            return new Part("application/json", "node()", document);
+        }
+
+        static Part integer(long value) {
+            return new Part("text/plain", "integer", Long.toString(value));
+        }
+
+        static Part bool(boolean value) {
+            return new Part("text/plain", "boolean", Boolean.toString(value));
+        }
+    }
+
+    /**
+     * Computes the body of a response, usually with {@link #multipart}.
+     */
+    interface Responder {
+        byte[] respond(Request request) throws IOException;
+    }
+
+    /**
+     * A request received by the stub.
+     */
+    static final class Request {
+        private final String path;
+        private final Map<String, String> parameters;
+
+        private Request(String path, Map<String, String> parameters) {
+            this.path = path;
+            this.parameters = parameters;
+        }
+
+        /**
+         * <tt>/v1/eval</tt> or <tt>/v1/invoke</tt>.
+         */
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * The form parameters of the request.
+         */
+        Map<String, String> getParameters() {
+            return parameters;
+        }
+
+        /**
+         * The query of <tt>/v1/eval</tt>.
+         */
+        String getQuery() {
+            return parameters.get("xquery");
+        }
+
+        /**
+         * The module of <tt>/v1/invoke</tt>.
+         */
+        String getModule() {
+            return parameters.get("module");
+        }
+
+        /**
+         * The external variables, by local name, as sent: the client writes
+         * <tt>evl<i>N</i></tt>, <tt>evv<i>N</i></tt> and <tt>evt<i>N</i></tt>
+         * parameters for the name, value and type of the <i>N</i>th one.
+         */
+        Map<String, String> getVariables() {
+            Map<String, String> variables = new HashMap<>();
+            for (int i = 0; parameters.containsKey("evl" + i); i++) {
+                variables.put(parameters.get("evl" + i), parameters.get("evv" + i));
+            }
+            return variables;
+        }
+
+        private static Request read(HttpExchange exchange) throws IOException {
+            Map<String, String> parameters = new HashMap<>();
+            for (String pair : new String(readBody(exchange), StandardCharsets.UTF_8).split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                            URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+            return new Request(exchange.getHttpContext().getPath(), Collections.unmodifiableMap(parameters));
+        }
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private void started() {
+        requests.incrementAndGet();
+        int now = active.incrementAndGet();
+        for (int max = maxActive.get(); now > max && !maxActive.compareAndSet(max, now); max = maxActive.get()) {
+            // Retry until the maximum is up to date
+        }
+    }
+
+    private int failure() {
+        for (int remaining = failuresToInject.get(); remaining > 0; remaining = failuresToInject.get()) {
+            if (failuresToInject.compareAndSet(remaining, remaining - 1)) {
+                return failureStatus;
+            }
+        }
+        double rate = failureRate;
+        if (rate > 0 && random.nextDouble() < rate) {
+            return failureRateStatus;
+        }
+        return 200;
+    }
+
+    private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        Map<String, Object> error = new HashMap<>();
+        error.put("statusCode", status);
+        error.put("status", "Stub error");
+        error.put("messageCode", "STUB-ERROR");
+        error.put("message", message);
+        byte[] body = MAPPER.writeValueAsBytes(Collections.singletonMap("errorResponse", error));
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        if (status == 503) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private final class EvalHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            started();
+            try {
+                Request request = Request.read(exchange);
+                lastRequest = request;
+                int status = failure();
+                pause(latency);
+                if (status == DROP) {
+                    // No response headers: the connection is closed
+                    exchange.close();
+                } else if (status != 200) {
+                    sendError(exchange, status, "Injected error " + status);
+                } else {
+                    byte[] body;
+                    try {
+                        body = responder.respond(request);
+                    } catch (IOException | RuntimeException ex) {
+                        // Shows up in the message of the client exception
+                        sendError(exchange, 500, "Responder failed: " + ex);
+                        return;
+                    }
+                    send(exchange, body);
+                }
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+
+        private void send(HttpExchange exchange, byte[] body) throws IOException {
+            if (body.length == 0) {
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "multipart/mixed; boundary=" + BOUNDARY);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                long rate = bandwidth;
+                if (rate <= 0) {
+                    out.write(body);
+                    return;
+                }
+                // Chunks of 1/100 s, each sent when the rate allows it
+                int chunk = (int) Math.max(1, Math.min(body.length, rate / 100));
+                long start = System.nanoTime();
+                for (int written = 0; written < body.length; written += chunk) {
+                    pause(written * 1000L / rate - (System.nanoTime() - start) / 1000000L);
+                    out.write(body, written, Math.min(chunk, body.length - written));
+                    out.flush();
+                }
+            }
+        }
+
+        private void pause(long millis) throws IOException {
+            if (millis <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * A single forest, on localhost.
+     */
+    private final class ForestsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, Object> forest = new LinkedHashMap<>();
+            forest.put("id", "1");
+            forest.put("database", "Documents");
+            forest.put("name", "Documents-1");
+            forest.put("host", "localhost");
+            forest.put("updatesAllowed", "all");
+            byte[] body = MAPPER.writeValueAsBytes(Collections.singletonList(forest));
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Keeps the content parts of a bulk write, by the file name of their
+     * <tt>Content-Disposition</tt>; metadata parts are ignored.
+     */
+    private final class DocumentsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            started();
+            try {
+                String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                byte[] body = readBody(exchange);
+                lastRequest = new Request(exchange.getHttpContext().getPath(), Collections.<String, String>emptyMap());
+                int status = failure();
+                if (status == DROP) {
+                    exchange.close();
+                    return;
+                }
+                if (status != 200) {
+                    sendError(exchange, status, "Injected error " + status);
+                    return;
+                }
+                List<String> uris = new ArrayList<>();
+                String boundary = contentType.substring(contentType.indexOf("boundary=") + 9).replace("\"", "");
+                for (String part : new String(body, StandardCharsets.UTF_8).split("--" + boundary)) {
+                    int headersEnd = part.indexOf("\r\n\r\n");
+                    if (headersEnd < 0) {
+                        continue;
+                    }
+                    String headers = part.substring(0, headersEnd);
+                    int filename = headers.indexOf("filename=\"");
+                    if (filename < 0 || headers.contains("category=metadata")) {
+                        continue;
+                    }
+                    String uri = headers.substring(filename + 10, headers.indexOf('"', filename + 10));
+                    String content = part.substring(headersEnd + 4);
+                    documents.put(uri, content.endsWith("\r\n") ? content.substring(0, content.length() - 2) : content);
+                    uris.add(uri);
+                }
+                List<Map<String, String>> written = new ArrayList<>();
+                for (String uri : uris) {
+                    written.add(Collections.singletonMap("uri", uri));
+                }
+                byte[] response = MAPPER.writeValueAsBytes(Collections.singletonMap("documents", written));
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+    }
+}
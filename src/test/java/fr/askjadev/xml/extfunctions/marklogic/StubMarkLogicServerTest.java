@@ -0,0 +1,474 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2017 EXT-acourt.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package fr.askjadev.xml.extfunctions.marklogic;
+
+import net.sf.saxon.ma.map.MapItem;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmEmptySequence;
+import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.s9api.XsltTransformer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * End-to-end test of <tt>mkl-ext:marklogic-query</tt>, against the stub
+ * server.
+ */
+public class StubMarkLogicServerTest {
+
+    private StubMarkLogicServer server;
+    private Processor processor;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubMarkLogicServer();
+        processor = new Processor(false);
+        processor.registerExtensionFunction(new MarkLogicQuery());
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        HostRouter.getInstance().clear();
+    }
+
+    private XdmValue query(String options) throws Exception {
+        return query(server.getConfigElement().replace("</marklogic>", options + "</marklogic>"), "()");
+    }
+
+    private XdmValue query(String config, String query) throws Exception {
+        XPathCompiler compiler = processor.newXPathCompiler();
+        compiler.declareNamespace("mkl-ext", MarkLogicQuery.EXT_NAMESPACE_URI);
+        compiler.declareVariable(new net.sf.saxon.s9api.QName("config"));
+        compiler.declareVariable(new net.sf.saxon.s9api.QName("query"));
+        XPathSelector selector = compiler.compile("mkl-ext:marklogic-query($query, $config/*)").load();
+        selector.setVariable(new net.sf.saxon.s9api.QName("query"), new XdmAtomicValue(query));
+        selector.setVariable(new net.sf.saxon.s9api.QName("config"),
+                processor.newDocumentBuilder().build(new StreamSource(new StringReader(config))));
+        return selector.evaluate();
+    }
+
+    @Test
+    public void testResults() throws Exception {
+        server.setResponse(Arrays.asList(
+                StubMarkLogicServer.Part.xml("<a>1</a>"),
+                StubMarkLogicServer.Part.string("two"),
+                StubMarkLogicServer.Part.integer(3)));
+        XdmValue result = query("");
+        assertEquals(3, result.size());
+        assertEquals("1", result.itemAt(0).getStringValue());
+        assertEquals("two", result.itemAt(1).getStringValue());
+        assertEquals("3", result.itemAt(2).getStringValue());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testEmptyResult() throws Exception {
+        assertEquals(0, query("").size());
+    }
+
+    @Test
+    public void testDocuments() throws Exception {
+        server.setResponse(StubMarkLogicServer.documents(100, 1024));
+        XdmValue result = query("<prefetch>10</prefetch>");
+        assertEquals(100, result.size());
+        for (XdmItem item : result) {
+            assertTrue(item.getStringValue().startsWith("text"));
+        }
+    }
+
+    @Test
+    public void testJsonMaps() throws Exception {
+        server.setResponse(Arrays.asList(StubMarkLogicServer.Part.json("{\"id\": 7, \"tags\": [\"a\", \"b\"]}")));
+        assertEquals("{\"id\": 7, \"tags\": [\"a\", \"b\"]}", query("").itemAt(0).getStringValue());
+        XdmValue result = query("<json>map</json>");
+        assertEquals(1, result.size());
+        assertTrue(result.itemAt(0).getUnderlyingValue() instanceof MapItem);
+    }
+
+    @Test
+    public void testJsonNullResult() throws Exception {
+        server.setResponse(Arrays.asList(StubMarkLogicServer.Part.json("1"), StubMarkLogicServer.Part.json("null"),
+                StubMarkLogicServer.Part.json("\"x\"")));
+        // A null is no item at all, not an item of its own
+        XdmValue result = query("<json>map</json>");
+        assertEquals(2, result.size());
+        assertEquals("1", result.itemAt(0).getStringValue());
+        assertEquals("x", result.itemAt(1).getStringValue());
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        server.setResponse(Arrays.asList(StubMarkLogicServer.Part.json("[{\"id\": 7}, \"two\", null, 3]")));
+        XdmValue result = query("<compact>true</compact>");
+        assertEquals(3, result.size());
+        assertTrue(result.itemAt(0).getUnderlyingValue() instanceof MapItem);
+        assertEquals("two", result.itemAt(1).getStringValue());
+        assertEquals("3", result.itemAt(2).getStringValue());
+        assertTrue(server.getLastRequest().getQuery().contains("xdmp:to-json"));
+        assertTrue(server.getLastRequest().getVariables().get("query").contains("<text>()</text>"));
+    }
+
+    @Test
+    public void testInjectedError() throws Exception {
+        server.setResponse(Arrays.asList(StubMarkLogicServer.Part.string("ok")));
+        server.failNext(1, 500);
+        try {
+            query("");
+            fail("The error should be reported");
+        } catch (SaxonApiException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Injected error 500"));
+        }
+        assertEquals("ok", query("").itemAt(0).getStringValue());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testCacheWithPages() throws Exception {
+        try {
+            query("<cache>true</cache><page-size>10</page-size>");
+            fail("A cached result is fetched at once");
+        } catch (SaxonApiException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("'cache' cannot be combined"));
+        }
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        server.setResponse(Arrays.asList(StubMarkLogicServer.Part.string("ok")));
+        server.failNext(2, 502);
+        assertEquals("ok", query("<retries>2</retries><retry-delay>1</retry-delay>").itemAt(0).getStringValue());
+        assertEquals(3, server.getRequestCount());
+        // Not transient: sent once
+        server.failNext(1, 500);
+        try {
+            query("<retries>2</retries><retry-delay>1</retry-delay>");
+            fail("The error should be reported");
+        } catch (SaxonApiException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Injected error 500"));
+        }
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void testHedgedRequest() throws Exception {
+        try (StubMarkLogicServer other = new StubMarkLogicServer()) {
+            StubMarkLogicServer.Responder responder = stuck(21, 5000);
+            server.setResponder(responder);
+            other.setResponder(responder);
+            String config = "<marklogic><server>localhost:" + server.getPort() + "</server>"
+                    + "<server>localhost:" + other.getPort() + "</server><port>" + server.getPort() + "</port>"
+                    + "<user>admin</user><password>admin</password><hedge>90</hedge></marklogic>";
+            XPathSelector selector = hedged(config);
+            long hedged = MarkLogicMetrics.getInstance().getHedgedRequests();
+            // Times the call
+            for (int i = 0; i < 20; i++) {
+                assertEquals("ok", selector.evaluate().itemAt(0).getStringValue());
+            }
+            assertEquals(hedged, MarkLogicMetrics.getInstance().getHedgedRequests());
+            long start = System.nanoTime();
+            assertEquals("ok", selector.evaluate().itemAt(0).getStringValue());
+            // Well before the stuck request ends
+            assertTrue((System.nanoTime() - start) / 1000000L < 4000);
+            assertEquals(hedged + 1, MarkLogicMetrics.getInstance().getHedgedRequests());
+            // The duplicate went to the other host
+            assertEquals(11, server.getRequestCount());
+            assertEquals(11, other.getRequestCount());
+        }
+    }
+
+    @Test
+    public void testSingleHostNotHedged() throws Exception {
+        server.setResponder(stuck(21, 500));
+        XPathSelector selector = hedged(server.getConfigElement().replace("</marklogic>", "<hedge>90</hedge></marklogic>"));
+        long hedged = MarkLogicMetrics.getInstance().getHedgedRequests();
+        for (int i = 0; i < 21; i++) {
+            assertEquals("ok", selector.evaluate().itemAt(0).getStringValue());
+        }
+        // The slow request is waited for, rather than sent again to the same host
+        assertEquals(hedged, MarkLogicMetrics.getInstance().getHedgedRequests());
+        assertEquals(21, server.getRequestCount());
+    }
+
+    /**
+     * A responder whose <tt>stuckRequest</tt>th request waits
+     * <tt>millis</tt>.
+     */
+    private static StubMarkLogicServer.Responder stuck(final int stuckRequest, final long millis) {
+        final byte[] body = StubMarkLogicServer.multipart(Arrays.asList(StubMarkLogicServer.Part.string("ok")));
+        final AtomicInteger requests = new AtomicInteger();
+        return new StubMarkLogicServer.Responder() {
+            @Override
+            public byte[] respond(StubMarkLogicServer.Request request) throws IOException {
+                if (requests.incrementAndGet() == stuckRequest) {
+                    try {
+                        Thread.sleep(millis);
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return body;
+            }
+        };
+    }
+
+    /**
+     * A selector compiled once, so that its calls share their response times.
+     */
+    private XPathSelector hedged(String config) throws Exception {
+        XPathCompiler compiler = processor.newXPathCompiler();
+        compiler.declareNamespace("mkl-ext", MarkLogicQuery.EXT_NAMESPACE_URI);
+        compiler.declareVariable(new net.sf.saxon.s9api.QName("config"));
+        XPathSelector selector = compiler.compile("mkl-ext:marklogic-query('()', $config/*)").load();
+        selector.setVariable(new net.sf.saxon.s9api.QName("config"), processor.newDocumentBuilder().build(new StreamSource(
+                new StringReader(config))));
+        return selector;
+    }
+
+    @Test
+    public void testDroppedHostIsEjected() throws Exception {
+        server.setResponse(Arrays.asList(StubMarkLogicServer.Part.string("ok")));
+        try (StubMarkLogicServer dropping = new StubMarkLogicServer()) {
+            dropping.setFailureRate(1, StubMarkLogicServer.DROP);
+            String config = "<marklogic><server>localhost:" + server.getPort() + "</server>"
+                    + "<server>localhost:" + dropping.getPort() + "</server><port>" + server.getPort() + "</port>"
+                    + "<user>admin</user><password>admin</password></marklogic>";
+            int failures = 0;
+            for (int i = 0; i < 6; i++) {
+                try {
+                    assertEquals("ok", query(config, "()").itemAt(0).getStringValue());
+                } catch (SaxonApiException | RuntimeException ex) {
+                    // No response: the client exception is not wrapped
+                    failures++;
+                }
+            }
+            // Round-robin sends one of the first two requests to the dropping host, which is then ejected
+            assertEquals(1, failures);
+            assertEquals(1, dropping.getRequestCount());
+            assertEquals(5, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void testEmptyLiteralArgument() throws Exception {
+        XPathCompiler compiler = processor.newXPathCompiler();
+        compiler.declareNamespace("mkl-ext", MarkLogicQuery.EXT_NAMESPACE_URI);
+        try {
+            compiler.compile("mkl-ext:marklogic-query('()', 'localhost', '" + server.getPort() + "', 'admin', 'admin', ())");
+            fail("The database is empty");
+        } catch (SaxonApiException ex) {
+            // Reported at compile time, rather than as a NullPointerException
+            assertTrue(ex.getMessage().contains("database"));
+        }
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void testEmptyArgument() throws Exception {
+        XPathCompiler compiler = processor.newXPathCompiler();
+        compiler.declareNamespace("mkl-ext", MarkLogicQuery.EXT_NAMESPACE_URI);
+        compiler.declareVariable(new net.sf.saxon.s9api.QName("user"));
+        XPathSelector selector = compiler.compile("mkl-ext:marklogic-query('()', 'localhost', '" + server.getPort()
+                + "', $user, 'admin')").load();
+        selector.setVariable(new net.sf.saxon.s9api.QName("user"), XdmEmptySequence.getInstance());
+        try {
+            selector.evaluate();
+            fail("The user is empty");
+        } catch (SaxonApiException ex) {
+            assertTrue(ex.getMessage().contains("user"));
+        }
+    }
+
+    @Test
+    public void testNoClient() throws Exception {
+        // No client can be created without a password
+        String config = "<marklogic><server>localhost</server><port>" + server.getPort() + "</port><user>admin</user></marklogic>";
+        for (int i = 0; i < 3; i++) {
+            try {
+                query(config, "()");
+                fail("There is no password");
+            } catch (SaxonApiException | IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+        // Neither the host nor its slots are held by the requests never sent
+        assertEquals(0, HostRouter.getInstance().getOutstanding("localhost:" + server.getPort()));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        List<Long> starts = pages(25);
+        XdmValue result = query("<page-size>10</page-size>");
+        assertEquals(25, result.size());
+        for (int i = 0; i < 25; i++) {
+            assertEquals(Integer.toString(i + 1), result.itemAt(i).getStringValue());
+        }
+        // The third page tells it is the last one
+        assertEquals(3, server.getRequestCount());
+        assertEquals(Arrays.asList(1L, 11L, 21L), starts);
+        assertTrue(server.getLastRequest().getQuery().contains("fn:subsequence"));
+        assertEquals("/v1/eval", server.getLastRequest().getPath());
+    }
+
+    @Test
+    public void testSinglePage() throws Exception {
+        pages(5);
+        assertEquals(5, query("<page-size>10</page-size>").size());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    /**
+     * Answers pages of the integers 1 to size, as the paging wrapper does.
+     *
+     * @return the starts of the pages requested
+     */
+    private List<Long> pages(final long size) {
+        final List<Long> starts = Collections.synchronizedList(new ArrayList<Long>());
+        server.setResponder(new StubMarkLogicServer.Responder() {
+            @Override
+            public byte[] respond(StubMarkLogicServer.Request request) {
+                Map<String, String> variables = request.getVariables();
+                long start = Long.parseLong(variables.get("start"));
+                long length = Long.parseLong(variables.get("length"));
+                starts.add(start);
+                List<StubMarkLogicServer.Part> parts = new ArrayList<>();
+                parts.add(StubMarkLogicServer.Part.bool(start + length <= size));
+                for (long i = start; i < Math.min(start + length, size + 1); i++) {
+                    parts.add(StubMarkLogicServer.Part.integer(i));
+                }
+                return StubMarkLogicServer.multipart(parts);
+            }
+        });
+        return starts;
+    }
+
+    @Test
+    public void testBandwidth() throws Exception {
+        server.setResponse(StubMarkLogicServer.documents(10, 2000));
+        server.setBandwidth(100000);
+        long start = System.nanoTime();
+        assertEquals(10, query("").size());
+        // About 20 kB at 100 kB/s: 200 ms, less a wide margin for the clock
+        assertTrue((System.nanoTime() - start) / 1000000L >= 100);
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        server.setLatency(200);
+        long start = System.nanoTime();
+        query("");
+        // 200 ms, less a margin for the clock
+        assertTrue((System.nanoTime() - start) / 1000000L >= 150);
+    }
+
+    @Test
+    public void testPassthrough() throws Exception {
+        server.setResponse(Arrays.asList(
+                StubMarkLogicServer.Part.xml("<a x='1'><b>text</b></a>"),
+                StubMarkLogicServer.Part.string("two"),
+                StubMarkLogicServer.Part.xml("<c/>")));
+        String stylesheet = "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'\n"
+                + "    xmlns:mkl-ext='" + MarkLogicQuery.EXT_NAMESPACE_URI + "' exclude-result-prefixes='mkl-ext'>\n"
+                + "  <xsl:variable name='config'>"
+                + server.getConfigElement().replace("</marklogic>", "<passthrough>true</passthrough></marklogic>")
+                + "</xsl:variable>\n"
+                + "  <xsl:template name='xsl:initial-template'>\n"
+                + "    <root><xsl:sequence select=\"mkl-ext:marklogic-query('()', $config/*)\"/></root>\n"
+                + "  </xsl:template>\n"
+                + "</xsl:stylesheet>";
+        XsltTransformer transformer = processor.newXsltCompiler().compile(new StreamSource(new StringReader(stylesheet))).load();
+        transformer.setInitialTemplate(new net.sf.saxon.s9api.QName("http://www.w3.org/1999/XSL/Transform", "initial-template"));
+        StringWriter out = new StringWriter();
+        Serializer serializer = processor.newSerializer(out);
+        serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+        transformer.setDestination(serializer);
+        transformer.transform();
+        assertEquals("<root><a x=\"1\"><b>text</b></a>two<c/></root>", out.toString());
+    }
+
+    @Test
+    public void testPassthroughInVariable() throws Exception {
+        try {
+            passthroughTemplate("<xsl:variable name='results' select=\"mkl-ext:marklogic-query('()', $config/*)\"/>"
+                    + "<root count='{count($results)}'><xsl:sequence select='$results'/></root>");
+            fail("A variable has no output to write to");
+        } catch (SaxonApiException ex) {
+            assertTrue(ex.getMessage().contains("'passthrough'"));
+        }
+    }
+
+    @Test
+    public void testPassthroughAsArgument() throws Exception {
+        // Not detected: the results go to the output being written, and the function gets no item
+        assertEquals("<root><a/>two0</root>", passthroughTemplate(
+                "<root><xsl:value-of select=\"count(mkl-ext:marklogic-query('()', $config/*))\"/></root>"));
+    }
+
+    private String passthroughTemplate(String template) throws Exception {
+        server.setResponse(Arrays.asList(StubMarkLogicServer.Part.xml("<a/>"), StubMarkLogicServer.Part.string("two")));
+        String stylesheet = "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='3.0'\n"
+                + "    xmlns:mkl-ext='" + MarkLogicQuery.EXT_NAMESPACE_URI + "' exclude-result-prefixes='mkl-ext'>\n"
+                + "  <xsl:variable name='config'>"
+                + server.getConfigElement().replace("</marklogic>", "<passthrough>true</passthrough></marklogic>")
+                + "</xsl:variable>\n"
+                + "  <xsl:template name='xsl:initial-template'>" + template + "</xsl:template>\n"
+                + "</xsl:stylesheet>";
+        XsltTransformer transformer = processor.newXsltCompiler().compile(new StreamSource(new StringReader(stylesheet))).load();
+        transformer.setInitialTemplate(new net.sf.saxon.s9api.QName("http://www.w3.org/1999/XSL/Transform", "initial-template"));
+        StringWriter out = new StringWriter();
+        Serializer serializer = processor.newSerializer(out);
+        serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+        transformer.setDestination(serializer);
+        transformer.transform();
+        return out.toString();
+    }
+
+    @Test(expected = SaxonApiException.class)
+    public void testPassthroughWithoutOutput() throws Exception {
+        query("<passthrough>true</passthrough>");
+    }
+}